@@ -0,0 +1,93 @@
+package net.oijon.osca.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.oijon.osca.Category;
+import net.oijon.osca.CategoryContext;
+import net.oijon.osca.Rule;
+import net.oijon.osca.RuleSet;
+
+/**
+ * Measures how much garbage running a rule list makes per word. Run this class's main
+ * method, or pass -prof gc to the benchmark jar, and compare gc.alloc.rate.norm
+ * between versions. The rule list includes exceptions, which used to be swapped out
+ * for placeholder strings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class AllocationBenchmark {
+
+	private static final int WORDS = 1024;
+
+	private static final String[] EXCEPTION_RULES = {
+		"S/Z/V_V/a_",
+		"k/tʃ/_[ie]/#_",
+		"a/ə/C_C/r_",
+		"n/ŋ/_S/a_",
+	};
+
+	private RuleSet realistic;
+	private RuleSet exceptions;
+	private String[] words;
+
+	@Setup
+	public void setup() throws Exception {
+		ArrayList<Category> categories = Fixtures.categories(20);
+		realistic = new RuleSet(Fixtures.rules(categories));
+		CategoryContext context = new CategoryContext(categories);
+		ArrayList<Rule> rules = new ArrayList<Rule>();
+		for (int i = 0; i < EXCEPTION_RULES.length; i++) {
+			rules.add(new Rule(EXCEPTION_RULES[i], context));
+		}
+		exceptions = new RuleSet(rules);
+		words = Fixtures.lexicon(WORDS, Fixtures.SEED);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WORDS)
+	public void realistic(Blackhole bh) {
+		for (int i = 0; i < words.length; i++) {
+			bh.consume(realistic.parse(words[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WORDS)
+	public void exceptions(Blackhole bh) {
+		for (int i = 0; i < words.length; i++) {
+			bh.consume(exceptions.parse(words[i]));
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(AllocationBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
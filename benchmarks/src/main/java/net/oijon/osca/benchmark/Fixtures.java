@@ -0,0 +1,179 @@
+package net.oijon.osca.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.oijon.osca.Category;
+import net.oijon.osca.CategoryContext;
+import net.oijon.osca.Rule;
+import net.oijon.osca.exception.InvalidRuleSyntaxException;
+
+/**
+ * Builds the categories, rules, and lexicons used by the benchmarks. Everything is
+ * generated from fixed seeds so every run measures the same input.
+ */
+public final class Fixtures {
+
+	public static final long SEED = 0x05CA_2025L;
+
+	private static final String[] CONSONANTS = {"p", "t", "k", "b", "d", "g", "m", "n", "s", "z",
+			"l", "r", "w", "j", "h", "f", "v", "ʃ", "x", "ŋ"};
+	private static final String[] VOICELESS = {"p", "t", "k"};
+	private static final String[] VOICED = {"b", "d", "g"};
+	private static final String[] VOWELS = {"a", "e", "i", "o", "u", "ə", "ɨ"};
+	private static final String[] NASALS = {"m", "n", "ŋ"};
+
+	/**
+	 * A realistic list of historical sound changes, touching most rule features
+	 */
+	private static final String[] RULES = {
+			"S/Z/V_V",
+			"k/ʃ/_[ie]",
+			"p/f/#_",
+			"ai/e/_",
+			"au/o/_",
+			"e/i/_(C)i",
+			"h//V_V",
+			"C//_²",
+			"V/ə/C_#",
+			"n/m/_[pb]",
+			"N/ŋ/_k",
+			"s/h/#_V",
+			"u/o/_C#",
+			"Vr/\\\\\\\\/_C",
+			"ə//C_C",
+			"z/r/V_V",
+			"x/h/_",
+			"ɨ/i/_",
+			"w/v/#_",
+			"j//i_",
+	};
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Creates the categories used by every benchmark rule
+	 * @param consonantCount How many values the consonant category C should have
+	 * @return The category list
+	 */
+	public static ArrayList<Category> categories(int consonantCount) {
+		String[] consonants = new String[consonantCount];
+		for (int i = 0; i < consonantCount; i++) {
+			if (i < CONSONANTS.length) {
+				consonants[i] = CONSONANTS[i];
+			} else {
+				// past the real inventory, use letters from the Latin Extended-A block
+				consonants[i] = Character.toString((char) (0x0100 + i));
+			}
+		}
+
+		ArrayList<Category> categories = new ArrayList<Category>();
+		categories.add(new Category("C", consonants));
+		categories.add(new Category("S", VOICELESS));
+		categories.add(new Category("Z", VOICED));
+		categories.add(new Category("V", VOWELS));
+		categories.add(new Category("N", NASALS));
+		return categories;
+	}
+
+	/**
+	 * Compiles the realistic rule list
+	 * @param categories The categories to compile the rules with
+	 * @return Every rule, in order
+	 */
+	public static ArrayList<Rule> rules(ArrayList<Category> categories) {
+		ArrayList<Rule> rules = new ArrayList<Rule>();
+		CategoryContext context = new CategoryContext(categories);
+		try {
+			for (int i = 0; i < RULES.length; i++) {
+				rules.add(new Rule(RULES[i], context));
+			}
+		} catch (InvalidRuleSyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+		return rules;
+	}
+
+	/**
+	 * Generates a lexicon of made-up words, built from one to four syllables each.
+	 * About one in ten words has a gloss.
+	 * @param size How many words to generate
+	 * @param seed The seed for the random number generator
+	 * @return The generated words
+	 */
+	public static String[] lexicon(int size, long seed) {
+		Random random = new Random(seed);
+		String[] words = new String[size];
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			word.setLength(0);
+			int syllables = 1 + random.nextInt(4);
+			for (int j = 0; j < syllables; j++) {
+				if (random.nextInt(5) != 0) {
+					word.append(CONSONANTS[random.nextInt(CONSONANTS.length)]);
+				}
+				word.append(VOWELS[random.nextInt(VOWELS.length)]);
+				if (random.nextInt(3) == 0) {
+					word.append(CONSONANTS[random.nextInt(CONSONANTS.length)]);
+				}
+			}
+			if (random.nextInt(10) == 0) {
+				word.append(" ‣ gloss ").append(i);
+			}
+			words[i] = word.toString();
+		}
+		return words;
+	}
+
+	/**
+	 * Generates a running corpus, where words are drawn again and again from a smaller
+	 * lexicon. Like real text, a few words are very common and most are rare, with the
+	 * chance of each word falling off with its rank.
+	 * @param tokens How many words the corpus has
+	 * @param types How many different words it is drawn from
+	 * @param seed The seed for the random number generator
+	 * @return The generated corpus
+	 */
+	public static String[] corpus(int tokens, int types, long seed) {
+		String[] lexicon = lexicon(types, seed);
+		double[] cumulative = new double[types];
+		double total = 0;
+		for (int i = 0; i < types; i++) {
+			total += 1.0 / (i + 1);
+			cumulative[i] = total;
+		}
+		Random random = new Random(seed + 1);
+		String[] corpus = new String[tokens];
+		for (int i = 0; i < tokens; i++) {
+			int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+			if (index < 0) {
+				index = Math.min(-index - 1, types - 1);
+			}
+			corpus[i] = lexicon[index];
+		}
+		return corpus;
+	}
+
+	/**
+	 * Generates a line of running text, such as a sentence or paragraph, made of
+	 * made-up words separated by spaces. Glosses are left out.
+	 * @param words How many words the text has
+	 * @param seed The seed for the random number generator
+	 * @return The generated text
+	 */
+	public static String text(int words, long seed) {
+		String[] lexicon = lexicon(words, seed);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < lexicon.length; i++) {
+			if (i > 0) {
+				text.append(' ');
+			}
+			int gloss = lexicon[i].indexOf(" ‣");
+			text.append(gloss == -1 ? lexicon[i] : lexicon[i].substring(0, gloss));
+		}
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,90 @@
+package net.oijon.osca.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.oijon.osca.Lexicon;
+import net.oijon.osca.Rule;
+import net.oijon.osca.RuleSet;
+import net.oijon.osca.SegmentedRuleSet;
+
+/**
+ * Measures running the realistic rule list over a whole lexicon, either one word at
+ * a time with Rule.parseList, a RuleSet or a SegmentedRuleSet, with Rule.parseLexicon
+ * across all cores, or rule by rule over an indexed Lexicon (including building its index).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ParseListBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	int lexiconSize;
+
+	private ArrayList<Rule> rules;
+	private RuleSet ruleSet;
+	private SegmentedRuleSet segmented;
+	private String[] lexicon;
+	private List<String> lexiconList;
+
+	@Setup
+	public void setup() {
+		rules = Fixtures.rules(Fixtures.categories(20));
+		ruleSet = new RuleSet(rules);
+		segmented = new SegmentedRuleSet(ruleSet);
+		lexicon = Fixtures.lexicon(lexiconSize, Fixtures.SEED);
+		lexiconList = Arrays.asList(lexicon);
+	}
+
+	@Benchmark
+	public void parseList(Blackhole bh) {
+		for (int i = 0; i < lexicon.length; i++) {
+			bh.consume(Rule.parseList(rules, lexicon[i]));
+		}
+	}
+
+	@Benchmark
+	public void ruleSet(Blackhole bh) {
+		for (int i = 0; i < lexicon.length; i++) {
+			bh.consume(ruleSet.parse(lexicon[i]));
+		}
+	}
+
+	@Benchmark
+	public void segmentedRuleSet(Blackhole bh) {
+		for (int i = 0; i < lexicon.length; i++) {
+			bh.consume(segmented.parse(lexicon[i]));
+		}
+	}
+
+	@Benchmark
+	public List<String> parseLexicon() {
+		return Rule.parseLexicon(rules, lexiconList);
+	}
+
+	@Benchmark
+	public Lexicon indexedLexicon() {
+		Lexicon indexed = new Lexicon(lexiconList);
+		indexed.apply(rules);
+		return indexed;
+	}
+
+}
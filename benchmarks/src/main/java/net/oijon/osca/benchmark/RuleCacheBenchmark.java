@@ -0,0 +1,71 @@
+package net.oijon.osca.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.oijon.osca.Rule;
+import net.oijon.osca.RuleCache;
+import net.oijon.osca.RuleSet;
+
+/**
+ * Measures running the realistic rule list over a corpus with 50 tokens for every
+ * word type, with and without a cache in front of the rule set. The cache starts
+ * empty in each iteration, so misses are part of what is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RuleCacheBenchmark {
+
+	private static final int TOKENS_PER_TYPE = 50;
+
+	@Param({"100000", "1000000"})
+	int tokens;
+
+	@Param({"1024", "65536"})
+	int cacheSize;
+
+	private RuleSet uncached;
+	private RuleSet cached;
+	private String[] corpus;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		ArrayList<Rule> rules = Fixtures.rules(Fixtures.categories(20));
+		uncached = new RuleSet(rules);
+		cached = new RuleSet(rules, new RuleCache(cacheSize));
+		corpus = Fixtures.corpus(tokens, tokens / TOKENS_PER_TYPE, Fixtures.SEED);
+	}
+
+	@Benchmark
+	public void uncached(Blackhole bh) {
+		for (int i = 0; i < corpus.length; i++) {
+			bh.consume(uncached.parse(corpus[i]));
+		}
+	}
+
+	@Benchmark
+	public void cached(Blackhole bh) {
+		for (int i = 0; i < corpus.length; i++) {
+			bh.consume(cached.parse(corpus[i]));
+		}
+	}
+
+}
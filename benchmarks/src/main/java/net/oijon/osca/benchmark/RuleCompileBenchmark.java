@@ -0,0 +1,71 @@
+package net.oijon.osca.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.oijon.osca.Category;
+import net.oijon.osca.Rule;
+
+/**
+ * Measures how long it takes to compile a single rule, as the consonant category
+ * grows and as different rule features are used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RuleCompileBenchmark {
+
+	@Param({"5", "20", "80"})
+	int categorySize;
+
+	@Param({"plain", "optional", "nonce", "wildcard", "boundary"})
+	String kind;
+
+	private ArrayList<Category> categories;
+	private String ruleStr;
+
+	@Setup
+	public void setup() {
+		categories = Fixtures.categories(categorySize);
+		switch (kind) {
+			case "plain":
+				ruleStr = "CVC/ta/V_V";
+				break;
+			case "optional":
+				ruleStr = "C/h/V(C)_(C)V";
+				break;
+			case "nonce":
+				ruleStr = "C/h/_[aeiouCN]";
+				break;
+			case "wildcard":
+				ruleStr = "C/h/_…V";
+				break;
+			case "boundary":
+				ruleStr = "CV/ta/#_#";
+				break;
+			default:
+				throw new IllegalArgumentException(kind);
+		}
+	}
+
+	@Benchmark
+	public Rule compile() throws Exception {
+		return new Rule(ruleStr, categories);
+	}
+
+}
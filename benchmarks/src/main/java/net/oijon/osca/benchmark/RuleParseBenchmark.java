@@ -0,0 +1,60 @@
+package net.oijon.osca.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.oijon.osca.Category;
+import net.oijon.osca.Rule;
+
+/**
+ * Measures applying one rule to one word, averaged over a fixed sample of words.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RuleParseBenchmark {
+
+	private static final int WORDS = 1024;
+
+	@Param({"S/Z/V_V", "k/ʃ/_[ie]", "V/ə/C_#", "e/i/_(C)i", "C//_²", "C/h/_…V"})
+	String ruleStr;
+
+	@Param({"20"})
+	int categorySize;
+
+	private Rule rule;
+	private String[] words;
+
+	@Setup
+	public void setup() throws Exception {
+		ArrayList<Category> categories = Fixtures.categories(categorySize);
+		rule = new Rule(ruleStr, categories);
+		words = Fixtures.lexicon(WORDS, Fixtures.SEED);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WORDS)
+	public void parse(Blackhole bh) {
+		for (int i = 0; i < words.length; i++) {
+			bh.consume(rule.parse(words[i]));
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package net.oijon.osca.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.oijon.osca.CategoryContext;
+import net.oijon.osca.Rule;
+import net.oijon.osca.exception.InvalidRuleSyntaxException;
+
+/**
+ * Measures wildcard rules on long lines, from a single sentence up to several
+ * paragraphs. The time per line should grow in step with its length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class WildcardBenchmark {
+
+	@Param({"10", "100", "1000"})
+	int words;
+
+	private String text;
+	// a wildcard in the environment, for long-distance assimilation
+	private Rule environment;
+	// a wildcard in the target, copied into the replacement
+	private Rule target;
+	// two wildcards before a cluster that never appears, so no match is ever found
+	private Rule missing;
+
+	@Setup
+	public void setup() throws InvalidRuleSyntaxException {
+		CategoryContext context = new CategoryContext(Fixtures.categories(20));
+		text = Fixtures.text(words, Fixtures.SEED);
+		environment = new Rule("e/i/_…i", context);
+		target = new Rule("s…t/s…d/_", context);
+		missing = new Rule("a…o…ʃxʃ/x/_", context);
+	}
+
+	@Benchmark
+	public String environment() {
+		return environment.parse(text);
+	}
+
+	@Benchmark
+	public String target() {
+		return target.parse(text);
+	}
+
+	@Benchmark
+	public String missing() {
+		return missing.parse(text);
+	}
+
+}
@@ -7,20 +7,21 @@ import java.util.ArrayList;
  * strings as placeholders.
  */
 public class Category {
-	String name;
-	ArrayList<String> values ;
+	final String name;
+	final ArrayList<String> values;
 	
 	private static final String[] WHITESPACE_CHARS = {" ", "\t", "\n", "\r", "\f"};
 	public static final Category WHITESPACE = new Category("#", WHITESPACE_CHARS);
 	
 	/**
-	 * Creates a category from an ArrayList of values
+	 * Creates a category from an ArrayList of values. The list is copied, so changing
+	 * it afterwards does not change the category.
 	 * @param name The name of the category
 	 * @param values Every value in the category
 	 */
 	public Category(String name, ArrayList<String> values) {
 		this.name = name;
-		this.values = values;
+		this.values = new ArrayList<String>(values);
 	}
 	
 	/**
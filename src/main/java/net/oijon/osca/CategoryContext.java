@@ -0,0 +1,237 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An immutable set of categories that rules can be compiled against. Category names
+ * are looked up through a trie built once when the context is created, always
+ * preferring the longest name, so rules sharing a context never need to sort or
+ * rescan the category list themselves. The # category is always included.
+ */
+public final class CategoryContext {
+
+	private final ArrayList<Category> categories;
+	private final Node root = new Node();
+
+	/**
+	 * Creates a context from a list of categories. The list is copied, so later changes
+	 * to it do not affect the context.
+	 * @param categories The categories rules in this context can use
+	 */
+	public CategoryContext(List<Category> categories) {
+		this(categories, null);
+	}
+
+	/**
+	 * Creates a context from a list of categories, along with extra categories that
+	 * should only be visible to a single rule
+	 * @param categories The categories rules in this context can use
+	 * @param extra More categories to add, or null for none
+	 */
+	private CategoryContext(List<Category> categories, List<Category> extra) {
+		ArrayList<Category> all = new ArrayList<Category>();
+		if (categories != null) {
+			all.addAll(categories);
+		}
+		if (extra != null) {
+			all.addAll(extra);
+		}
+		if (!all.contains(Category.WHITESPACE)) {
+			all.add(Category.WHITESPACE);
+		}
+		// longer names first, so expanding strings by name never breaks up a longer name
+		all.sort((a, b) -> { return b.name.length() - a.name.length(); } );
+		this.categories = all;
+
+		for (int i = 0; i < all.size(); i++) {
+			Category c = all.get(i);
+			if (c.name.isEmpty()) {
+				continue;
+			}
+			Node node = root;
+			for (int j = 0; j < c.name.length(); j++) {
+				Node child = node.children.get(c.name.charAt(j));
+				if (child == null) {
+					child = new Node();
+					node.children.put(c.name.charAt(j), child);
+				}
+				node = child;
+			}
+			node.name = c.name;
+			node.matching.add(c);
+		}
+	}
+
+	/**
+	 * Creates a new context with everything in this one, plus more categories
+	 * @param extra The categories to add
+	 * @return A new context with the extra categories
+	 */
+	CategoryContext with(List<Category> extra) {
+		return new CategoryContext(categories, extra);
+	}
+
+	/**
+	 * Gets every category in the context, longest names first. The list must not be
+	 * changed.
+	 * @return The categories in this context
+	 */
+	ArrayList<Category> list() {
+		return categories;
+	}
+
+	/**
+	 * Checks if a category name is used in this context
+	 * @param name The name to check
+	 * @return true if a category has the given name, false otherwise
+	 */
+	boolean contains(String name) {
+		Node node = find(name);
+		return node != null && node.name != null;
+	}
+
+	/**
+	 * Finds the longest category name starting at a position
+	 * @param input The string to search
+	 * @param index The position the name must start at
+	 * @return The name found, or null if no category starts there
+	 */
+	String matchName(String input, int index) {
+		String longest = null;
+		Node node = root;
+		for (int i = index; i < input.length(); i++) {
+			node = node.children.get(input.charAt(i));
+			if (node == null) {
+				break;
+			}
+			if (node.name != null) {
+				longest = node.name;
+			}
+		}
+		return longest;
+	}
+
+	/**
+	 * Gets every category in a string, in the order they appear. At each position, the
+	 * longest name is used.
+	 * @param input The string to find categories in
+	 * @return A list of each category in the given string
+	 */
+	Category[] categoriesIn(String input) {
+		ArrayList<Category> found = new ArrayList<Category>();
+		int i = 0;
+		while (i < input.length()) {
+			String name = matchName(input, i);
+			if (name == null) {
+				i++;
+			} else {
+				found.add(find(name).matching.get(0));
+				i += name.length();
+			}
+		}
+		return found.toArray(new Category[0]);
+	}
+
+	/**
+	 * Counts the categories in a string
+	 * @param input The string to count the categories in
+	 * @return The amount of categories found in the input
+	 */
+	int countCategories(String input) {
+		return categoriesIn(input).length;
+	}
+
+	/**
+	 * Gets every value a category name can stand for. Categories sharing a name are
+	 * merged, and values that are themselves made of categories (such as in the nonce
+	 * category [FB]) are expanded.
+	 * @param name The name of the category
+	 * @return Every value of the category
+	 */
+	ArrayList<String> valuesOf(String name) {
+		return valuesOf(name, 0);
+	}
+
+	/**
+	 * Gets every value a category name can stand for
+	 * @param name The name of the category
+	 * @param depth How many categories deep this lookup is, to stop self-referencing categories
+	 * @return Every value of the category
+	 */
+	private ArrayList<String> valuesOf(String name, int depth) {
+		ArrayList<String> values = new ArrayList<String>();
+		Node node = find(name);
+		if (node == null) {
+			return values;
+		}
+		for (int i = 0; i < node.matching.size(); i++) {
+			Category c = node.matching.get(i);
+			for (int j = 0; j < c.values.size(); j++) {
+				String value = c.values.get(j);
+				if (depth < 8) {
+					values.addAll(expandValue(value, depth + 1));
+				} else {
+					values.add(value);
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Expands any category names inside a category value
+	 * @param value The value to expand
+	 * @param depth How many categories deep this lookup is
+	 * @return Every string the value can stand for
+	 */
+	private ArrayList<String> expandValue(String value, int depth) {
+		ArrayList<String> output = new ArrayList<String>();
+		output.add("");
+		int i = 0;
+		while (i < value.length()) {
+			String name = matchName(value, i);
+			ArrayList<String> pieces = new ArrayList<String>();
+			if (name == null) {
+				pieces.add(Character.toString(value.charAt(i)));
+				i++;
+			} else {
+				pieces = valuesOf(name, depth);
+				i += name.length();
+			}
+			ArrayList<String> combined = new ArrayList<String>();
+			for (int j = 0; j < output.size(); j++) {
+				for (int k = 0; k < pieces.size(); k++) {
+					combined.add(output.get(j) + pieces.get(k));
+				}
+			}
+			output = combined;
+		}
+		return output;
+	}
+
+	/**
+	 * Walks the trie along a whole name
+	 * @param name The name to look up
+	 * @return The node for the name, or null if no category name starts with it
+	 */
+	private Node find(String name) {
+		Node node = root;
+		for (int i = 0; i < name.length() && node != null; i++) {
+			node = node.children.get(name.charAt(i));
+		}
+		return node;
+	}
+
+	/**
+	 * A node in the category name trie
+	 */
+	private static final class Node {
+		final HashMap<Character, Node> children = new HashMap<Character, Node>();
+		// the name ending at this node, and every category with it
+		String name;
+		final ArrayList<Category> matching = new ArrayList<Category>();
+	}
+
+}
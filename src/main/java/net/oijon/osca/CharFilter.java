@@ -0,0 +1,154 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A quick check for whether a rule could possibly change a word. It is made of sets
+ * of code points, where every match of the rule needs at least one code point from
+ * each set somewhere in the word. Code points in the Basic Multilingual Plane are
+ * looked up in a bitset, and anything above it in a small sorted array.
+ */
+final class CharFilter {
+
+	// the most sets that are checked; only the ones least likely to be found are kept
+	private static final int MAX_SETS = 8;
+
+	private final long[][] bits;
+	private final int[][] supplementary;
+	// the set least likely to be found in a word
+	private final int[] narrowest;
+
+	private CharFilter(ArrayList<int[]> sets) {
+		narrowest = sets.get(0);
+		bits = new long[sets.size()][];
+		supplementary = new int[sets.size()][];
+		for (int i = 0; i < sets.size(); i++) {
+			int[] set = sets.get(i);
+			int max = 0;
+			int numSupplementary = 0;
+			for (int j = 0; j < set.length; j++) {
+				if (set[j] > Character.MAX_VALUE) {
+					numSupplementary++;
+				} else {
+					max = Math.max(max, set[j]);
+				}
+			}
+			long[] setBits = new long[(max >> 6) + 1];
+			int[] setSupplementary = new int[numSupplementary];
+			int k = 0;
+			for (int j = 0; j < set.length; j++) {
+				if (set[j] > Character.MAX_VALUE) {
+					setSupplementary[k] = set[j];
+					k++;
+				} else {
+					setBits[set[j] >> 6] |= 1L << set[j];
+				}
+			}
+			Arrays.sort(setSupplementary);
+			bits[i] = setBits;
+			supplementary[i] = setSupplementary;
+		}
+	}
+
+	/**
+	 * Creates a filter from the sets of code points a rule needs. Sets containing a
+	 * space come from #, which can also be met by the start or end of the word: patterns
+	 * match # at the edges of the raw word, and padded rules have spaces added there.
+	 * Neither shows up as a code point in the word, so those sets are skipped. Leaving
+	 * a set out only lets more words through, so the filter never rules out a word the
+	 * rule could change.
+	 * @param sets The sets of code points, where at least one of each set must be in a word
+	 * @return The filter, or null if nothing is needed and every word must be checked
+	 */
+	static CharFilter of(ArrayList<int[]> sets) {
+		ArrayList<int[]> kept = new ArrayList<int[]>();
+		for (int i = 0; i < sets.size(); i++) {
+			int[] set = sets.get(i).clone();
+			Arrays.sort(set);
+			if (Arrays.binarySearch(set, ' ') >= 0) {
+				continue;
+			}
+			boolean duplicate = false;
+			for (int j = 0; j < kept.size() && !duplicate; j++) {
+				duplicate = Arrays.equals(kept.get(j), set);
+			}
+			if (!duplicate) {
+				kept.add(set);
+			}
+		}
+		if (kept.isEmpty()) {
+			return null;
+		}
+		// smaller sets are less likely to be found, so they rule out more words
+		kept.sort((a, b) -> { return a.length - b.length; } );
+		while (kept.size() > MAX_SETS) {
+			kept.remove(kept.size() - 1);
+		}
+		return new CharFilter(kept);
+	}
+
+	/**
+	 * Gets the first code point of each string in a list
+	 * @param values The strings to look at
+	 * @return The first code point of each string, or null if any string is empty
+	 */
+	static int[] firstCodePoints(String[] values) {
+		int[] set = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].isEmpty()) {
+				return null;
+			}
+			set[i] = values[i].codePointAt(0);
+		}
+		return set;
+	}
+
+	/**
+	 * Gets the set of code points least likely to be found in a word. A word that has
+	 * none of them can't be changed by the rule.
+	 * @return The smallest set of code points the rule needs one of. It must not be changed.
+	 */
+	int[] narrowestSet() {
+		return narrowest;
+	}
+
+	/**
+	 * Checks if a word has at least one code point from every set
+	 * @param input The word to check
+	 * @return false if the rule can't match the word, true if it might
+	 */
+	boolean mayMatch(CharSequence input) {
+		int unmet = (1 << bits.length) - 1;
+		int i = 0;
+		while (i < input.length()) {
+			int c = Character.codePointAt(input, i);
+			i += Character.charCount(c);
+			for (int s = 0; s < bits.length; s++) {
+				if ((unmet & (1 << s)) != 0 && contains(s, c)) {
+					unmet &= ~(1 << s);
+					if (unmet == 0) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if one of the sets has a code point
+	 * @param s The index of the set
+	 * @param c The code point to look for
+	 * @return true if the set has the code point, false otherwise
+	 */
+	private boolean contains(int s, int c) {
+		if (c > Character.MAX_VALUE) {
+			return Arrays.binarySearch(supplementary[s], c) >= 0;
+		}
+		long[] set = bits[s];
+		int word = c >> 6;
+		return word < set.length && (set[word] & (1L << c)) != 0;
+	}
+
+}
@@ -0,0 +1,39 @@
+package net.oijon.osca;
+
+/**
+ * A limit on how far a rule may be expanded when it is compiled. Rules that can be
+ * compiled into a pattern keep their categories as sets and are never expanded, but
+ * rules that still need mappings list every string their target and environment can
+ * stand for, and a rule whose exception has no _ lists every string its exception can
+ * stand for. How many strings that would be is worked out from the category sizes
+ * first, and a rule over the budget is rejected before anything is listed.
+ */
+public final class CompileBudget {
+
+	private final long maxExpansions;
+
+	/**
+	 * Creates a budget
+	 * @param maxExpansions The most mappings and exception strings one rule may be expanded into
+	 */
+	public CompileBudget(long maxExpansions) {
+		if (maxExpansions < 0) {
+			throw new IllegalArgumentException("Budget must be at least 0, was " + maxExpansions);
+		}
+		this.maxExpansions = maxExpansions;
+	}
+
+	/**
+	 * Gets the most mappings and exception strings one rule may be expanded into
+	 * @return The limit
+	 */
+	public long getMaxExpansions() {
+		return maxExpansions;
+	}
+
+	@Override
+	public String toString() {
+		return "CompileBudget[maxExpansions=" + maxExpansions + "]";
+	}
+
+}
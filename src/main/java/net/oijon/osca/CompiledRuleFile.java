@@ -0,0 +1,434 @@
+package net.oijon.osca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32C;
+
+/**
+ * Saves compiled rule sets to a binary file, so they can be loaded again without
+ * expanding any rules. A file keeps the categories, each rule with its nonce
+ * categories already named, and every mapping and exception string the rule was
+ * expanded into, along with the tables of its automaton if it has one. Every mapping
+ * replacement and exception is kept once in a shared string pool. An automaton's tables
+ * are read in bulk, and the targets it was built from are only decoded if something
+ * asks for the rule's mappings, since matching needs only their lengths. Loading a file
+ * only compiles the patterns of rules that have them again, which never expands
+ * anything. Files are read through a memory-mapped buffer.
+ * <p>
+ * Each file starts with a header holding the format version, a checksum of the rule
+ * text and categories it was compiled from, and a checksum of the rest of the file.
+ * load() compiles the rules again and replaces the file whenever any of them don't match.
+ */
+public final class CompiledRuleFile {
+
+	/**
+	 * The version of the format written by this class. Files with any other version
+	 * are never read.
+	 */
+	public static final int FORMAT_VERSION = 2;
+
+	// "OSCA" in ASCII
+	private static final int MAGIC = 0x4F534341;
+	// magic, version, source checksum, and body checksum
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	private CompiledRuleFile() {
+	}
+
+	/**
+	 * Loads a compiled rule set, or compiles the rules and saves them if the file is
+	 * missing, damaged, from another version, or was compiled from different rules or
+	 * categories
+	 * @param file The compiled file
+	 * @param ruleList A list of rules, separated by newlines
+	 * @param context The categories every rule can use
+	 * @return A rule set with each rule specified
+	 * @throws IOException Thrown if the file cannot be read or written
+	 */
+	public static RuleSet load(Path file, String ruleList, CategoryContext context) throws IOException {
+		if (Files.isRegularFile(file)) {
+			RuleSet rules = read(file, ruleList, context);
+			if (rules != null) {
+				return rules;
+			}
+		}
+		return write(file, ruleList, context);
+	}
+
+	/**
+	 * Compiles a list of rules and saves them. The file is written next to where it goes
+	 * and then moved into place, so a file being read is never half written.
+	 * @param file The file to save to. It is created if needed, and replaced if it exists.
+	 * @param ruleList A list of rules, separated by newlines
+	 * @param context The categories every rule can use
+	 * @return The compiled rule set
+	 * @throws IOException Thrown if the file cannot be written
+	 */
+	public static RuleSet write(Path file, String ruleList, CategoryContext context) throws IOException {
+		ArrayList<Rule> rules = Rule.parseFromList(ruleList, context);
+
+		// rules are written first, so the pool holds every string they use
+		ArrayList<String> pool = new ArrayList<String>();
+		HashMap<String, Integer> poolIndexes = new HashMap<String, Integer>();
+		ToIntFunction<String> indexOf = str -> {
+			Integer index = poolIndexes.get(str);
+			if (index == null) {
+				index = pool.size();
+				pool.add(str);
+				poolIndexes.put(str, index);
+			}
+			return index;
+		};
+		ByteArrayOutputStream ruleBytes = new ByteArrayOutputStream();
+		DataOutputStream ruleOut = new DataOutputStream(ruleBytes);
+		ruleOut.writeInt(rules.size());
+		for (int i = 0; i < rules.size(); i++) {
+			Rule rule = rules.get(i);
+			writeString(ruleOut, rule.target);
+			writeString(ruleOut, rule.replacement);
+			writeString(ruleOut, rule.environment);
+			writeString(ruleOut, rule.exception);
+			writeCategories(ruleOut, rule.nonces);
+			ruleOut.writeInt(rule.exceptions.size());
+			for (int j = 0; j < rule.exceptions.size(); j++) {
+				ruleOut.writeInt(indexOf.applyAsInt(rule.exceptions.get(j)));
+			}
+			ruleOut.writeBoolean(rule.automaton != null);
+			if (rule.automaton != null) {
+				rule.automaton.write(ruleOut, indexOf);
+				// targets are only read if something asks for the mappings
+				ByteArrayOutputStream targetBytes = new ByteArrayOutputStream();
+				DataOutputStream targets = new DataOutputStream(targetBytes);
+				for (int j = 0; j < rule.mappings.size(); j++) {
+					writeString(targets, rule.mappings.get(j)[0]);
+				}
+				targets.flush();
+				ruleOut.writeInt(targetBytes.size());
+				targetBytes.writeTo(ruleOut);
+			} else {
+				ruleOut.writeInt(rule.mappings.size());
+				for (int j = 0; j < rule.mappings.size(); j++) {
+					ruleOut.writeInt(indexOf.applyAsInt(rule.mappings.get(j)[0]));
+					ruleOut.writeInt(indexOf.applyAsInt(rule.mappings.get(j)[1]));
+				}
+			}
+		}
+		ruleOut.flush();
+
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bodyBytes);
+		writeCategories(body, categoriesOf(context));
+		body.writeInt(pool.size());
+		for (int i = 0; i < pool.size(); i++) {
+			writeString(body, pool.get(i));
+		}
+		ruleBytes.writeTo(body);
+		body.flush();
+
+		byte[] bodyArray = bodyBytes.toByteArray();
+		CRC32C bodyChecksum = new CRC32C();
+		bodyChecksum.update(bodyArray);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putLong(checksum(ruleList, context));
+		header.putLong(bodyChecksum.getValue());
+		header.flip();
+
+		Path parent = file.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer bodyBuffer = ByteBuffer.wrap(bodyArray);
+				while (header.hasRemaining() || bodyBuffer.hasRemaining()) {
+					out.write(new ByteBuffer[] {header, bodyBuffer});
+				}
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return new RuleSet(rules);
+	}
+
+	/**
+	 * Loads a compiled rule set, as long as it was compiled from the given rules and categories
+	 * @param file The compiled file
+	 * @param ruleList The list of rules the file should have been compiled from
+	 * @param context The categories the file should have been compiled with
+	 * @return The rule set, or null if the file is damaged, from another version, or was
+	 * compiled from something else
+	 * @throws IOException Thrown if the file cannot be read
+	 */
+	public static RuleSet read(Path file, String ruleList, CategoryContext context) throws IOException {
+		ByteBuffer buffer = map(file);
+		if (problemWith(buffer, checksum(ruleList, context)) != null) {
+			return null;
+		}
+		return readBody(file, buffer);
+	}
+
+	/**
+	 * Loads a compiled rule set without checking what it was compiled from. The
+	 * categories saved in the file are used.
+	 * @param file The compiled file
+	 * @return The rule set
+	 * @throws IOException Thrown if the file cannot be read, is damaged, or is from
+	 * another version
+	 */
+	public static RuleSet read(Path file) throws IOException {
+		ByteBuffer buffer = map(file);
+		String problem = problemWith(buffer, -1);
+		if (problem != null) {
+			throw new IOException(file + " " + problem);
+		}
+		return readBody(file, buffer);
+	}
+
+	/**
+	 * Works out the checksum a file compiled from some rules and categories has in its header
+	 * @param ruleList A list of rules, separated by newlines
+	 * @param context The categories every rule can use
+	 * @return The checksum
+	 */
+	public static long checksum(String ruleList, CategoryContext context) {
+		CRC32C crc = new CRC32C();
+		updateChecksum(crc, ruleList);
+		ArrayList<Category> categories = categoriesOf(context);
+		for (int i = 0; i < categories.size(); i++) {
+			updateChecksum(crc, categories.get(i).name);
+			ArrayList<String> values = categories.get(i).values;
+			for (int j = 0; j < values.size(); j++) {
+				updateChecksum(crc, values.get(j));
+			}
+			// ends the category, so values can't be mistaken for the next category
+			crc.update(0xFF);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Adds a string to a checksum, with its length first so strings can't run together
+	 * @param crc The checksum to add to
+	 * @param str The string to add
+	 */
+	private static void updateChecksum(CRC32C crc, String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		crc.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+		crc.update(bytes);
+	}
+
+	/**
+	 * Gets the categories in a context that have to be saved. # is left out, since every
+	 * context has it.
+	 * @param context The context
+	 * @return The categories in the context, besides #
+	 */
+	private static ArrayList<Category> categoriesOf(CategoryContext context) {
+		ArrayList<Category> categories = new ArrayList<Category>(context.list());
+		categories.remove(Category.WHITESPACE);
+		return categories;
+	}
+
+	/**
+	 * Maps a whole file into memory
+	 * @param file The file
+	 * @return A read-only buffer over the file
+	 * @throws IOException Thrown if the file cannot be read
+	 */
+	private static ByteBuffer map(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			// the mapping stays valid after the channel is closed
+			return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+		}
+	}
+
+	/**
+	 * Checks the header of a compiled file, and the checksum of the rest of it
+	 * @param buffer The whole file
+	 * @param sourceChecksum The checksum of what the file should have been compiled from,
+	 * or -1 to not check it
+	 * @return What is wrong with the file, or null if nothing is
+	 */
+	private static String problemWith(ByteBuffer buffer, long sourceChecksum) {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			return "is not a compiled rule file";
+		}
+		int version = buffer.getInt(4);
+		if (version != FORMAT_VERSION) {
+			return "has format version " + version + ", expected " + FORMAT_VERSION;
+		}
+		if (sourceChecksum != -1 && buffer.getLong(8) != sourceChecksum) {
+			return "was compiled from different rules or categories";
+		}
+		ByteBuffer body = buffer.duplicate();
+		body.position(HEADER_SIZE);
+		CRC32C crc = new CRC32C();
+		crc.update(body);
+		if (crc.getValue() != buffer.getLong(16)) {
+			return "is damaged";
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the categories and rules saved after the header of a compiled file
+	 * @param file The file, for error messages
+	 * @param buffer The whole file
+	 * @return The rule set
+	 * @throws IOException Thrown if the file ends early
+	 */
+	private static RuleSet readBody(Path file, ByteBuffer buffer) throws IOException {
+		ByteBuffer body = buffer.duplicate();
+		body.position(HEADER_SIZE);
+		try {
+			CategoryContext context = new CategoryContext(readCategories(body));
+			String[] pool = new String[body.getInt()];
+			for (int i = 0; i < pool.length; i++) {
+				pool[i] = readString(body);
+			}
+			int ruleCount = body.getInt();
+			ArrayList<Rule> rules = new ArrayList<Rule>(ruleCount);
+			for (int i = 0; i < ruleCount; i++) {
+				String target = readString(body);
+				String replacement = readString(body);
+				String environment = readString(body);
+				String exception = readString(body);
+				ArrayList<Category> nonces = readCategories(body);
+				int exceptionCount = body.getInt();
+				ArrayList<String> exceptions = new ArrayList<String>(exceptionCount);
+				for (int j = 0; j < exceptionCount; j++) {
+					exceptions.add(pool[body.getInt()]);
+				}
+				MappingAutomaton automaton = null;
+				List<String[]> mappings;
+				if (body.get() != 0) {
+					automaton = MappingAutomaton.read(body, pool);
+					int targetsLength = body.getInt();
+					ByteBuffer targets = body.slice();
+					targets.limit(targetsLength);
+					body.position(body.position() + targetsLength);
+					mappings = new StoredMappings(targets, automaton);
+				} else {
+					int mappingCount = body.getInt();
+					mappings = new ArrayList<String[]>(mappingCount);
+					for (int j = 0; j < mappingCount; j++) {
+						String[] mapping = {pool[body.getInt()], pool[body.getInt()]};
+						mappings.add(mapping);
+					}
+				}
+				rules.add(new Rule(target, replacement, environment, exception, context, nonces, mappings,
+						exceptions, automaton));
+			}
+			return new RuleSet(rules);
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+				| NegativeArraySizeException e) {
+			throw new IOException(file + " ends early", e);
+		}
+	}
+
+	private static void writeCategories(DataOutputStream out, List<Category> categories) throws IOException {
+		out.writeInt(categories.size());
+		for (int i = 0; i < categories.size(); i++) {
+			writeString(out, categories.get(i).name);
+			ArrayList<String> values = categories.get(i).values;
+			out.writeInt(values.size());
+			for (int j = 0; j < values.size(); j++) {
+				writeString(out, values.get(j));
+			}
+		}
+	}
+
+	private static ArrayList<Category> readCategories(ByteBuffer in) {
+		int count = in.getInt();
+		ArrayList<Category> categories = new ArrayList<Category>(count);
+		for (int i = 0; i < count; i++) {
+			String name = readString(in);
+			String[] values = new String[in.getInt()];
+			for (int j = 0; j < values.length; j++) {
+				values[j] = readString(in);
+			}
+			categories.add(new Category(name, values));
+		}
+		return categories;
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The mappings of a rule with an automaton, read from a compiled file. Matching only
+	 * needs the automaton, so the targets are left in the file until something asks for
+	 * the mappings themselves, such as Rule.explain().
+	 */
+	private static final class StoredMappings extends AbstractList<String[]> {
+		// each target as a length and then its UTF-8 bytes
+		private final ByteBuffer targets;
+		private final MappingAutomaton automaton;
+		private volatile String[][] decoded;
+
+		StoredMappings(ByteBuffer targets, MappingAutomaton automaton) {
+			this.targets = targets;
+			this.automaton = automaton;
+		}
+
+		@Override
+		public String[] get(int index) {
+			return decode()[index];
+		}
+
+		@Override
+		public int size() {
+			return automaton.size();
+		}
+
+		private String[][] decode() {
+			String[][] pairs = decoded;
+			if (pairs == null) {
+				synchronized (this) {
+					pairs = decoded;
+					if (pairs == null) {
+						ByteBuffer in = targets.duplicate();
+						pairs = new String[automaton.size()][];
+						for (int i = 0; i < pairs.length; i++) {
+							String[] pair = {readString(in), automaton.replacementOf(i)};
+							pairs[i] = pair;
+						}
+						decoded = pairs;
+					}
+				}
+			}
+			return pairs;
+		}
+	}
+
+}
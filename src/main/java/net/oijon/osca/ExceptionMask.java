@@ -0,0 +1,99 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+
+/**
+ * A view of a word where every place an exception is found has been hidden. Hidden
+ * characters read as a character no rule can match, so matching against the view
+ * never touches an exception, while the output is still copied from the word itself.
+ */
+final class ExceptionMask implements CharSequence {
+
+	// read in place of hidden characters; a noncharacter, so never part of a rule. A
+	// U+FFFF already in the word is read as itself wherever it isn't hidden, so it is
+	// matched as usual; only a rule naming U+FFFF itself could mistake a hidden
+	// character for it.
+	static final char HIDDEN = '\uFFFF';
+
+	private final CharSequence text;
+	private final boolean[] hidden;
+
+	private ExceptionMask(CharSequence text, boolean[] hidden) {
+		this.text = text;
+		this.hidden = hidden;
+	}
+
+	/**
+	 * Hides every exception found in a word. Exceptions are looked for in order, and
+	 * each one is found left to right without overlapping anything already hidden.
+	 * @param text The word to look in
+	 * @param exceptions The exceptions to hide
+	 * @return A view of the word with the exceptions hidden, or null if none were found
+	 */
+	static ExceptionMask find(CharSequence text, ArrayList<String> exceptions) {
+		boolean[] hidden = null;
+		for (int i = 0; i < exceptions.size(); i++) {
+			String exception = exceptions.get(i);
+			if (exception.isEmpty()) {
+				continue;
+			}
+			int pos = 0;
+			while (pos + exception.length() <= text.length()) {
+				if (matches(text, hidden, pos, exception)) {
+					if (hidden == null) {
+						hidden = new boolean[text.length()];
+					}
+					for (int j = 0; j < exception.length(); j++) {
+						hidden[pos + j] = true;
+					}
+					pos += exception.length();
+				} else {
+					pos++;
+				}
+			}
+		}
+		return hidden == null ? null : new ExceptionMask(text, hidden);
+	}
+
+	/**
+	 * Checks if an exception is found at a position, without crossing anything hidden
+	 * @param text The word to look in
+	 * @param hidden Which characters are hidden, or null if none are
+	 * @param pos The position to check
+	 * @param exception The exception to look for
+	 * @return true if the exception is found there, false otherwise
+	 */
+	private static boolean matches(CharSequence text, boolean[] hidden, int pos, String exception) {
+		for (int j = 0; j < exception.length(); j++) {
+			if (text.charAt(pos + j) != exception.charAt(j) || (hidden != null && hidden[pos + j])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int length() {
+		return text.length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return hidden[index] ? HIDDEN : text.charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		StringBuilder sub = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			sub.append(charAt(i));
+		}
+		return sub;
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+
+}
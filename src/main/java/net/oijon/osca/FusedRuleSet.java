@@ -0,0 +1,264 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs a rule set with runs of context-free single-character substitutions fused
+ * together. A rule that changes one character into some string everywhere it appears,
+ * such as x/h/_, or S/Z/_ when every value of S and Z is one character long, doesn't
+ * depend on anything around its target. Any run of two or more of these rules in a row
+ * is the same as one table from each character to what it ends up as, so the whole
+ * run is applied in a single pass over the word.
+ * <p>
+ * Nothing else is fused. Rules with an environment or an exception, metathesis, and
+ * rules whose target can be longer than one character are each run on their own, in
+ * the same place in the order as before, and a single substitution between two of them
+ * isn't worth a table either. Rule files made mostly of conditioned changes gain little;
+ * getFusedRules() and stepCount() show how much of a given file was fused.
+ * <p>
+ * Like a RuleSet, a FusedRuleSet is immutable and can be used from many threads at once.
+ */
+public final class FusedRuleSet {
+
+	private static final int MAX_KEPT_CAPACITY = 1 << 16;
+	private static final ThreadLocal<StringBuilder[]> BUFFERS = ThreadLocal.withInitial(() -> {
+		return new StringBuilder[] {new StringBuilder(64), new StringBuilder(64)};
+	});
+
+	private final RuleSet rules;
+	// each step is either a Rule or a CharTable for a run of fused rules
+	private final Object[] steps;
+	private final List<Rule> fused;
+
+	/**
+	 * Creates a fused version of a rule set
+	 * @param rules The rules to run
+	 */
+	public FusedRuleSet(RuleSet rules) {
+		this.rules = rules;
+		List<Rule> list = rules.getRules();
+		ArrayList<Object> stepList = new ArrayList<Object>();
+		ArrayList<Rule> fusedList = new ArrayList<Rule>();
+		int i = 0;
+		while (i < list.size()) {
+			int end = i;
+			while (end < list.size() && CharTable.canFuse(list.get(end))) {
+				end++;
+			}
+			// a run of one rule is no faster as a table
+			if (end - i < 2) {
+				stepList.add(list.get(i));
+				i++;
+				continue;
+			}
+			CharTable table = new CharTable();
+			for (int j = i; j < end; j++) {
+				table.add(list.get(j));
+				fusedList.add(list.get(j));
+			}
+			stepList.add(table);
+			i = end;
+		}
+		steps = stepList.toArray();
+		fused = Collections.unmodifiableList(fusedList);
+	}
+
+	/**
+	 * Gets the rule set this was made from
+	 * @return The rule set
+	 */
+	public RuleSet getRuleSet() {
+		return rules;
+	}
+
+	/**
+	 * Gets the rules that were fused into tables
+	 * @return An unmodifiable list of the fused rules, in order
+	 */
+	public List<Rule> getFusedRules() {
+		return fused;
+	}
+
+	/**
+	 * Gets how many passes are made over each word, counting each table and each rule
+	 * that is run on its own
+	 * @return The amount of passes
+	 */
+	public int stepCount() {
+		return steps.length;
+	}
+
+	/**
+	 * Runs every rule in the set over a string
+	 * @param input The string to run through the rules
+	 * @return The output of every rule on the given string
+	 */
+	public String parse(String input) {
+		int firstGlossChar = input.indexOf('‣');
+		if (firstGlossChar == 0) {
+			return input;
+		} else if (firstGlossChar == -1) {
+			return apply(input);
+		}
+		int bodyEnd = RuleSet.bodyEnd(input, firstGlossChar);
+		return apply(input.substring(0, bodyEnd)) + input.substring(bodyEnd);
+	}
+
+	/**
+	 * Runs every step over a word that has no gloss
+	 * @param body The word to run through the rules
+	 * @return The output of every rule on the word
+	 */
+	private String apply(String body) {
+		StringBuilder[] buffers = BUFFERS.get();
+		StringBuilder current = buffers[0];
+		StringBuilder next = buffers[1];
+
+		current.setLength(0);
+		current.append(body);
+
+		boolean changed = false;
+		for (int i = 0; i < steps.length; i++) {
+			next.setLength(0);
+			boolean stepChanged;
+			if (steps[i] instanceof CharTable) {
+				stepChanged = ((CharTable) steps[i]).apply(current, next);
+			} else {
+				stepChanged = ((Rule) steps[i]).apply(current, next);
+			}
+			if (stepChanged) {
+				StringBuilder swap = current;
+				current = next;
+				next = swap;
+				changed = true;
+			}
+		}
+
+		String output = changed ? current.toString() : body;
+		if (current.capacity() > MAX_KEPT_CAPACITY || next.capacity() > MAX_KEPT_CAPACITY) {
+			BUFFERS.remove();
+		}
+		return output;
+	}
+
+	/**
+	 * What each character turns into after a run of rules. Characters that aren't in
+	 * the table are left as they are.
+	 */
+	private static final class CharTable {
+		// indexed by character, null where the character isn't changed
+		private String[] table = new String[0];
+
+		/**
+		 * Checks if a rule changes single characters without looking at what is around
+		 * them. The rule has to have no environment and no exception, and its target has
+		 * to be one character, or a category whose values are all one character.
+		 * @param rule The rule to check
+		 * @return true if the rule can be added to a table, false otherwise
+		 */
+		static boolean canFuse(Rule rule) {
+			if (rule.pattern == null || !rule.environment.equals("_") || !rule.exception.isEmpty()
+					|| rule.replacement.equals("\\\\\\\\")) {
+				return false;
+			}
+			return !targetChars(rule).isEmpty();
+		}
+
+		/**
+		 * Finds every character a rule's target can match
+		 * @param rule The rule
+		 * @return The characters, or an empty list if the target isn't a single character
+		 */
+		private static ArrayList<Character> targetChars(Rule rule) {
+			ArrayList<Character> chars = new ArrayList<Character>();
+			String target = rule.target;
+			CategoryContext context = rule.getContext();
+			String name = target.isEmpty() ? null : context.matchName(target, 0);
+			if (name == null) {
+				// a lone character that isn't a category, and isn't part of any other syntax
+				if (target.length() == 1 && "…()²".indexOf(target.charAt(0)) == -1
+						&& !Character.isSurrogate(target.charAt(0))) {
+					chars.add(target.charAt(0));
+				}
+				return chars;
+			}
+			if (name.length() != target.length() || name.equals(Category.WHITESPACE.name)) {
+				return chars;
+			}
+			ArrayList<String> values = context.valuesOf(name);
+			for (int i = 0; i < values.size(); i++) {
+				if (values.get(i).length() != 1) {
+					chars.clear();
+					return chars;
+				}
+				chars.add(values.get(i).charAt(0));
+			}
+			return chars;
+		}
+
+		/**
+		 * Adds a rule to the end of the run. Since the rule changes each character on its
+		 * own, running it over what a character already turns into gives what that
+		 * character turns into after it.
+		 * @param rule The rule to add, which has to be one that can be fused
+		 */
+		void add(Rule rule) {
+			StringBuilder output = new StringBuilder();
+			for (int i = 0; i < table.length; i++) {
+				if (table[i] != null) {
+					output.setLength(0);
+					if (rule.replace(table[i], output) > 0) {
+						table[i] = output.toString();
+					}
+				}
+			}
+			ArrayList<Character> chars = targetChars(rule);
+			for (int i = 0; i < chars.size(); i++) {
+				char c = chars.get(i);
+				if (c >= table.length) {
+					String[] bigger = new String[c + 1];
+					System.arraycopy(table, 0, bigger, 0, table.length);
+					table = bigger;
+				}
+				if (table[c] == null) {
+					output.setLength(0);
+					table[c] = rule.replace(String.valueOf(c), output) > 0 ? output.toString() : String.valueOf(c);
+				}
+			}
+			// characters that turn back into themselves don't need to be looked up
+			for (int i = 0; i < table.length; i++) {
+				if (table[i] != null && table[i].length() == 1 && table[i].charAt(0) == i) {
+					table[i] = null;
+				}
+			}
+		}
+
+		/**
+		 * Runs the table over text
+		 * @param input The text to change
+		 * @param output Where the changed text is written, if anything changes
+		 * @return true if any character was changed, false otherwise
+		 */
+		boolean apply(CharSequence input, StringBuilder output) {
+			String[] table = this.table;
+			boolean changed = false;
+			int copied = 0;
+			for (int i = 0; i < input.length(); i++) {
+				char c = input.charAt(i);
+				if (c < table.length && table[c] != null) {
+					output.append(input, copied, i);
+					output.append(table[c]);
+					copied = i + 1;
+					changed = true;
+				}
+			}
+			if (changed) {
+				output.append(input, copied, input.length());
+			}
+			return changed;
+		}
+	}
+
+}
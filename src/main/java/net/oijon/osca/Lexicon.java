@@ -0,0 +1,151 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A lexicon that keeps an index from each code point to the words that contain it.
+ * When a rule is applied, only the words that have the code points the rule needs
+ * are looked at, and the index is updated as words change. This makes each rule cost
+ * time in proportion to the words it could change, rather than to the whole lexicon,
+ * which helps most with long rule lists where each rule only touches a few words.
+ * Unlike rules, a lexicon changes as rules are applied, and should only be used from
+ * one thread at a time.
+ */
+public final class Lexicon {
+
+	private final String[] words;
+	private final HashMap<Integer, BitSet> index = new HashMap<Integer, BitSet>();
+
+	/**
+	 * Creates a lexicon from a list of words, indexing every word
+	 * @param words The words in the lexicon. The list is copied.
+	 */
+	public Lexicon(List<String> words) {
+		this.words = words.toArray(new String[0]);
+		for (int i = 0; i < this.words.length; i++) {
+			addToIndex(i);
+		}
+	}
+
+	/**
+	 * Applies a rule to every word it could change
+	 * @param rule The rule to apply
+	 * @return How many words the rule changed
+	 */
+	public int apply(Rule rule) {
+		CharFilter filter = rule.getFilter();
+		BitSet candidates = new BitSet(words.length);
+		if (filter == null) {
+			candidates.set(0, words.length);
+		} else {
+			int[] set = filter.narrowestSet();
+			for (int i = 0; i < set.length; i++) {
+				BitSet containing = index.get(set[i]);
+				if (containing != null) {
+					candidates.or(containing);
+				}
+			}
+		}
+
+		int changed = 0;
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			String output = rule.parse(words[i]);
+			if (!output.equals(words[i])) {
+				removeFromIndex(i);
+				words[i] = output;
+				addToIndex(i);
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Applies a list of rules, in order, to every word they could change
+	 * @param rules The rules to apply
+	 * @return How many times a word was changed by a rule
+	 */
+	public int apply(List<Rule> rules) {
+		int changed = 0;
+		for (int i = 0; i < rules.size(); i++) {
+			changed += apply(rules.get(i));
+		}
+		return changed;
+	}
+
+	/**
+	 * Applies every rule in a rule set, in order, to every word they could change
+	 * @param rules The rules to apply
+	 * @return How many times a word was changed by a rule
+	 */
+	public int apply(RuleSet rules) {
+		return apply(rules.getRules());
+	}
+
+	/**
+	 * Gets the amount of words in the lexicon
+	 * @return The size of the lexicon
+	 */
+	public int size() {
+		return words.length;
+	}
+
+	/**
+	 * Gets a word in the lexicon
+	 * @param i The index of the word
+	 * @return The word as it is now, after any rules applied so far
+	 */
+	public String get(int i) {
+		return words[i];
+	}
+
+	/**
+	 * Gets every word in the lexicon
+	 * @return An unmodifiable copy of the words, in their original order
+	 */
+	public List<String> getWords() {
+		return Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(words)));
+	}
+
+	/**
+	 * Adds a word to the index under each of its code points
+	 * @param i The index of the word
+	 */
+	private void addToIndex(int i) {
+		String word = words[i];
+		int j = 0;
+		while (j < word.length()) {
+			int c = word.codePointAt(j);
+			BitSet containing = index.get(c);
+			if (containing == null) {
+				containing = new BitSet();
+				index.put(c, containing);
+			}
+			containing.set(i);
+			j += Character.charCount(c);
+		}
+	}
+
+	/**
+	 * Removes a word from the index
+	 * @param i The index of the word
+	 */
+	private void removeFromIndex(int i) {
+		String word = words[i];
+		int j = 0;
+		while (j < word.length()) {
+			int c = word.codePointAt(j);
+			BitSet containing = index.get(c);
+			if (containing != null) {
+				containing.clear(i);
+			}
+			j += Character.charCount(c);
+		}
+	}
+
+}
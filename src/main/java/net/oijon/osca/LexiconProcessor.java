@@ -0,0 +1,301 @@
+package net.oijon.osca;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs a rule set over a lexicon file one line at a time, reading and writing
+ * through NIO channels. Only a fixed number of lines are held in memory at once, so
+ * files of any size can be processed. Lines can optionally be processed in batches
+ * across a fork-join pool, and are always written in the same order they were read.
+ * Input and output are UTF-8, glosses after '‣' are kept as they are, and lines are
+ * written with '\n' endings.
+ */
+public final class LexiconProcessor {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int DEFAULT_BATCH_SIZE = 4096;
+
+	private final RuleSet rules;
+	private final ForkJoinPool pool;
+	private final int batchSize;
+
+	/**
+	 * Creates a processor that runs every line on the calling thread
+	 * @param rules The rules to run over each line
+	 */
+	public LexiconProcessor(RuleSet rules) {
+		this(rules, null, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates a processor that runs batches of lines in a fork-join pool
+	 * @param rules The rules to run over each line
+	 * @param pool The pool to run batches in, or null to run on the calling thread
+	 * @param batchSize How many lines go in each batch
+	 */
+	public LexiconProcessor(RuleSet rules, ForkJoinPool pool, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+		}
+		this.rules = rules;
+		this.pool = pool;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Reads a rule file, with one rule per line
+	 * @param ruleFile The file to read
+	 * @param context The categories every rule can use
+	 * @return A rule set with each rule in the file
+	 * @throws IOException Thrown if the file cannot be read
+	 */
+	public static RuleSet readRules(Path ruleFile, CategoryContext context) throws IOException {
+		String text = new String(Files.readAllBytes(ruleFile), StandardCharsets.UTF_8);
+		return RuleSet.parseFromList(text.replace("\r\n", "\n"), context);
+	}
+
+	/**
+	 * Reads a rule file, with one rule per line, through a compiled copy of it. The
+	 * compiled file is used if it was made from the same rules and categories, and is
+	 * compiled again otherwise.
+	 * @param ruleFile The file to read
+	 * @param context The categories every rule can use
+	 * @param compiledFile Where the compiled copy of the rules is kept
+	 * @return A rule set with each rule in the file
+	 * @throws IOException Thrown if either file cannot be read, or the compiled file cannot be written
+	 */
+	public static RuleSet readRules(Path ruleFile, CategoryContext context, Path compiledFile) throws IOException {
+		String text = new String(Files.readAllBytes(ruleFile), StandardCharsets.UTF_8);
+		return CompiledRuleFile.load(compiledFile, text.replace("\r\n", "\n"), context);
+	}
+
+	/**
+	 * Runs the rules over every line of a lexicon file, writing the results to another file
+	 * @param input The lexicon file to read
+	 * @param output The file to write to. It is created if needed, and replaced if it exists.
+	 * @return The amount of lines processed
+	 * @throws IOException Thrown if either file cannot be read or written, or the input is not valid UTF-8
+	 */
+	public long process(Path input, Path output) throws IOException {
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			return process(in, out);
+		}
+	}
+
+	/**
+	 * Runs the rules over every line read from a channel, writing the results to another
+	 * channel. Neither channel is closed.
+	 * @param input The channel to read lines from
+	 * @param output The channel to write the results to
+	 * @return The amount of lines processed
+	 * @throws IOException Thrown if either channel fails, or the input is not valid UTF-8
+	 */
+	public long process(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		LineWriter writer = new LineWriter(output);
+		Batches batches = new Batches(writer);
+		StringBuilder line = new StringBuilder();
+		boolean lineEnded = false;
+
+		boolean eof = false;
+		while (!eof) {
+			eof = input.read(bytes) == -1;
+			bytes.flip();
+			CoderResult result;
+			do {
+				result = decoder.decode(bytes, chars, eof);
+				if (result.isError()) {
+					result.throwException();
+				}
+				chars.flip();
+				while (chars.hasRemaining()) {
+					char c = chars.get();
+					if (c == '\n') {
+						int end = line.length();
+						if (end > 0 && line.charAt(end - 1) == '\r') {
+							end--;
+						}
+						batches.add(line.substring(0, end));
+						line.setLength(0);
+						lineEnded = true;
+					} else {
+						line.append(c);
+						lineEnded = false;
+					}
+				}
+				chars.clear();
+			} while (result.isOverflow());
+			bytes.compact();
+		}
+		decoder.flush(chars);
+		chars.flip();
+		line.append(chars);
+
+		if (line.length() > 0) {
+			batches.add(line.toString());
+			lineEnded = false;
+		}
+		batches.finish();
+		if (lineEnded) {
+			writer.write("\n");
+		}
+		writer.flush();
+		return batches.lines;
+	}
+
+	/**
+	 * Collects lines into batches, runs them, and passes the results to the writer in
+	 * the order they were read
+	 */
+	private final class Batches {
+		private final LineWriter writer;
+		// batches that have been started but not written yet, oldest first
+		private final ArrayDeque<ForkJoinTask<String[]>> pending = new ArrayDeque<ForkJoinTask<String[]>>();
+		private final int maxPending;
+		private ArrayList<String> batch = new ArrayList<String>();
+		long lines = 0;
+
+		Batches(LineWriter writer) {
+			this.writer = writer;
+			maxPending = pool == null ? 0 : pool.getParallelism() * 2;
+		}
+
+		/**
+		 * Adds a line, running the current batch if it is full
+		 * @param line The line to add, without its line ending
+		 * @throws IOException Thrown if the output cannot be written
+		 */
+		void add(String line) throws IOException {
+			batch.add(line);
+			lines++;
+			if (batch.size() >= batchSize) {
+				submit();
+			}
+		}
+
+		/**
+		 * Runs the current batch. When running in a pool, the oldest batches are written
+		 * out first if too many are waiting, which keeps memory use bounded.
+		 * @throws IOException Thrown if the output cannot be written
+		 */
+		private void submit() throws IOException {
+			ArrayList<String> current = batch;
+			batch = new ArrayList<String>(batchSize);
+			if (pool == null) {
+				writeBatch(run(current));
+				return;
+			}
+			while (pending.size() >= maxPending) {
+				writeBatch(pending.removeFirst().join());
+			}
+			pending.addLast(pool.submit(() -> { return run(current); }));
+		}
+
+		/**
+		 * Runs whatever is left and writes every remaining batch
+		 * @throws IOException Thrown if the output cannot be written
+		 */
+		void finish() throws IOException {
+			if (!batch.isEmpty()) {
+				submit();
+			}
+			while (!pending.isEmpty()) {
+				writeBatch(pending.removeFirst().join());
+			}
+		}
+
+		private String[] run(ArrayList<String> input) {
+			String[] output = new String[input.size()];
+			for (int i = 0; i < output.length; i++) {
+				output[i] = rules.parse(input.get(i));
+			}
+			return output;
+		}
+
+		private void writeBatch(String[] output) throws IOException {
+			for (int i = 0; i < output.length; i++) {
+				writer.writeLine(output[i]);
+			}
+		}
+	}
+
+	/**
+	 * Encodes lines as UTF-8 into a buffer that is written out whenever it fills up
+	 */
+	private static final class LineWriter {
+		private final WritableByteChannel channel;
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private boolean first = true;
+
+		LineWriter(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Writes a line, separated from the line before it with '\n'
+		 * @param line The line to write
+		 * @throws IOException Thrown if the channel cannot be written to
+		 */
+		void writeLine(String line) throws IOException {
+			if (!first) {
+				write("\n");
+			}
+			first = false;
+			write(line);
+		}
+
+		void write(String text) throws IOException {
+			CharBuffer chars = CharBuffer.wrap(text);
+			while (true) {
+				CoderResult result = encoder.encode(chars, bytes, false);
+				if (result.isUnderflow()) {
+					break;
+				}
+				drain();
+			}
+		}
+
+		void flush() throws IOException {
+			encoder.encode(CharBuffer.allocate(0), bytes, true);
+			while (encoder.flush(bytes).isOverflow()) {
+				drain();
+			}
+			drain();
+		}
+
+		private void drain() throws IOException {
+			bytes.flip();
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			bytes.clear();
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package net.oijon.osca;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A fork-join task that runs a rule set over a range of words in a lexicon.
+ * Each task writes only to its own range of the output array, so no locking is needed
+ * and outputs stay in the same order as the input.
+ */
+final class LexiconTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 7300545624410612342L;
+
+	private final RuleSet rules;
+	private final List<String> input;
+	private final String[] output;
+	private final int from;
+	private final int to;
+	private final int threshold;
+
+	/**
+	 * Creates a task over a range of the lexicon
+	 * @param rules The rules to apply
+	 * @param input The lexicon to read words from
+	 * @param output The array to write outputs to, the same size as the input
+	 * @param from The first index to process
+	 * @param to The index after the last one to process
+	 * @param threshold Ranges at or below this size are processed without splitting
+	 */
+	LexiconTask(RuleSet rules, List<String> input, String[] output, int from, int to, int threshold) {
+		this.rules = rules;
+		this.input = input;
+		this.output = output;
+		this.from = from;
+		this.to = to;
+		this.threshold = threshold;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= threshold) {
+			for (int i = from; i < to; i++) {
+				output[i] = rules.parse(input.get(i));
+			}
+		} else {
+			int middle = (from + to) >>> 1;
+			invokeAll(new LexiconTask(rules, input, output, from, middle, threshold),
+					new LexiconTask(rules, input, output, middle, to, threshold));
+		}
+	}
+
+	/**
+	 * Picks how many words each task should process before it stops splitting. This
+	 * aims for several tasks per worker so that work stealing can even out words of
+	 * different lengths, without making tasks so small that splitting dominates.
+	 * @param size The number of words in the lexicon
+	 * @param parallelism The number of workers in the pool
+	 * @return The number of words to process without splitting
+	 */
+	static int threshold(int size, int parallelism) {
+		int perTask = size / (parallelism * 8);
+		return Math.max(64, perTask);
+	}
+
+}
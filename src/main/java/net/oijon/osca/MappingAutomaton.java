@@ -0,0 +1,397 @@
+package net.oijon.osca;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * An Aho-Corasick automaton built over the targets of a rule's mappings. This allows
+ * every mapping to be searched for in one left-to-right pass over a word, instead of
+ * scanning the whole word once for every mapping.
+ */
+final class MappingAutomaton {
+
+	private final String[] replacements;
+	private final int[] targetLengths;
+
+	// the transitions of state i are edgeKeys and edgeNext from edgeStart[i] up to
+	// edgeStart[i + 1], sorted by character for binary search
+	private final int[] edgeStart;
+	private final char[] edgeKeys;
+	private final int[] edgeNext;
+	private final int[] fail;
+	// the highest priority mapping ending exactly at each state, or -1
+	private final int[] rank;
+	// the nearest state along the failure chain that ends a mapping, or -1
+	private final int[] outputLink;
+
+	/**
+	 * Creates an automaton from a list of target/replacement pairs. Pairs earlier in
+	 * the list take priority over later pairs matching at the same position.
+	 * @param mappings The target/replacement pairs to search for
+	 */
+	MappingAutomaton(List<String[]> mappings) {
+		replacements = new String[mappings.size()];
+		targetLengths = new int[mappings.size()];
+
+		ArrayList<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+		ArrayList<Integer> ranks = new ArrayList<Integer>();
+		trie.add(new HashMap<Character, Integer>());
+		ranks.add(-1);
+
+		for (int i = 0; i < mappings.size(); i++) {
+			String target = mappings.get(i)[0];
+			replacements[i] = mappings.get(i)[1];
+			targetLengths[i] = target.length();
+			// an empty target can never be found, so it isn't added
+			if (target.isEmpty()) {
+				continue;
+			}
+			int state = 0;
+			for (int j = 0; j < target.length(); j++) {
+				Integer child = trie.get(state).get(target.charAt(j));
+				if (child == null) {
+					child = trie.size();
+					trie.add(new HashMap<Character, Integer>());
+					ranks.add(-1);
+					trie.get(state).put(target.charAt(j), child);
+				}
+				state = child;
+			}
+			// duplicate targets only ever match for the first mapping
+			if (ranks.get(state) == -1) {
+				ranks.set(state, i);
+			}
+		}
+
+		int numStates = trie.size();
+		edgeStart = new int[numStates + 1];
+		// every state but the root is reached by exactly one edge
+		edgeKeys = new char[numStates - 1];
+		edgeNext = new int[numStates - 1];
+		fail = new int[numStates];
+		rank = new int[numStates];
+		outputLink = new int[numStates];
+
+		int edge = 0;
+		for (int i = 0; i < numStates; i++) {
+			edgeStart[i] = edge;
+			Map<Character, Integer> children = trie.get(i);
+			for (Character c : children.keySet()) {
+				edgeKeys[edge] = c;
+				edge++;
+			}
+			Arrays.sort(edgeKeys, edgeStart[i], edge);
+			for (int j = edgeStart[i]; j < edge; j++) {
+				edgeNext[j] = children.get(edgeKeys[j]);
+			}
+			rank[i] = ranks.get(i);
+		}
+		edgeStart[numStates] = edge;
+
+		buildFailureLinks();
+	}
+
+	/**
+	 * Creates an automaton from tables written by write(), without building the trie again
+	 * @param replacements The replacement of each mapping
+	 * @param targetLengths The length of each mapping's target
+	 * @param edgeStart Where the transitions of each state start
+	 * @param edgeKeys The character of each transition
+	 * @param edgeNext The state each transition leads to
+	 * @param fail The failure link of each state
+	 * @param rank The mapping ending at each state, or -1
+	 * @param outputLink The output link of each state, or -1
+	 */
+	private MappingAutomaton(String[] replacements, int[] targetLengths, int[] edgeStart, char[] edgeKeys,
+			int[] edgeNext, int[] fail, int[] rank, int[] outputLink) {
+		this.replacements = replacements;
+		this.targetLengths = targetLengths;
+		this.edgeStart = edgeStart;
+		this.edgeKeys = edgeKeys;
+		this.edgeNext = edgeNext;
+		this.fail = fail;
+		this.rank = rank;
+		this.outputLink = outputLink;
+	}
+
+	/**
+	 * Writes the automaton's tables. Replacements are written as indexes into a pool of
+	 * strings kept by the caller, and targets aren't written at all, since only their
+	 * lengths are needed to match.
+	 * @param out Where to write the tables
+	 * @param pool Gives the index of each replacement in the pool, adding it if needed
+	 * @throws IOException Thrown if the tables cannot be written
+	 */
+	void write(DataOutputStream out, ToIntFunction<String> pool) throws IOException {
+		out.writeInt(replacements.length);
+		for (int i = 0; i < replacements.length; i++) {
+			out.writeInt(pool.applyAsInt(replacements[i]));
+		}
+		writeInts(out, targetLengths);
+		out.writeInt(fail.length);
+		out.writeInt(edgeKeys.length);
+		writeInts(out, edgeStart);
+		for (int i = 0; i < edgeKeys.length; i++) {
+			out.writeChar(edgeKeys[i]);
+		}
+		writeInts(out, edgeNext);
+		writeInts(out, fail);
+		writeInts(out, rank);
+		writeInts(out, outputLink);
+	}
+
+	/**
+	 * Reads an automaton's tables written by write(). The arrays are copied out of the
+	 * buffer in bulk, so nothing is rebuilt.
+	 * @param in The buffer to read the tables from
+	 * @param pool The pool of strings the replacements were written into
+	 * @return The automaton
+	 */
+	static MappingAutomaton read(ByteBuffer in, String[] pool) {
+		String[] replacements = new String[in.getInt()];
+		for (int i = 0; i < replacements.length; i++) {
+			replacements[i] = pool[in.getInt()];
+		}
+		int[] targetLengths = readInts(in, replacements.length);
+		int numStates = in.getInt();
+		int numEdges = in.getInt();
+		int[] edgeStart = readInts(in, numStates + 1);
+		char[] edgeKeys = new char[numEdges];
+		in.asCharBuffer().get(edgeKeys);
+		in.position(in.position() + 2 * numEdges);
+		int[] edgeNext = readInts(in, numEdges);
+		int[] fail = readInts(in, numStates);
+		int[] rank = readInts(in, numStates);
+		int[] outputLink = readInts(in, numStates);
+		return new MappingAutomaton(replacements, targetLengths, edgeStart, edgeKeys, edgeNext, fail, rank,
+				outputLink);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			out.writeInt(values[i]);
+		}
+	}
+
+	private static int[] readInts(ByteBuffer in, int count) {
+		int[] values = new int[count];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + 4 * count);
+		return values;
+	}
+
+	/**
+	 * Gets how many mappings the automaton was built from
+	 * @return The amount of mappings
+	 */
+	int size() {
+		return replacements.length;
+	}
+
+	/**
+	 * Gets the replacement of a mapping
+	 * @param mapping The index of the mapping
+	 * @return The replacement
+	 */
+	String replacementOf(int mapping) {
+		return replacements[mapping];
+	}
+
+	/**
+	 * Gets the first code point of every target, read off the edges leaving the root
+	 * rather than the targets themselves
+	 * @return The first code points, or null if any target is empty
+	 */
+	int[] firstCodePoints() {
+		for (int i = 0; i < targetLengths.length; i++) {
+			if (targetLengths[i] == 0) {
+				return null;
+			}
+		}
+		int[] set = new int[edgeStart[1] - edgeStart[0]];
+		int size = 0;
+		for (int i = edgeStart[0]; i < edgeStart[1]; i++) {
+			char c = edgeKeys[i];
+			int child = edgeNext[i];
+			if (!Character.isHighSurrogate(c)) {
+				set = add(set, size, c);
+				size++;
+				continue;
+			}
+			// a high surrogate starts a code point with whatever low surrogate follows it
+			boolean alone = rank[child] != -1;
+			for (int j = edgeStart[child]; j < edgeStart[child + 1]; j++) {
+				if (Character.isLowSurrogate(edgeKeys[j])) {
+					set = add(set, size, Character.toCodePoint(c, edgeKeys[j]));
+					size++;
+				} else {
+					alone = true;
+				}
+			}
+			if (alone) {
+				set = add(set, size, c);
+				size++;
+			}
+		}
+		return Arrays.copyOf(set, size);
+	}
+
+	private static int[] add(int[] set, int size, int value) {
+		if (size == set.length) {
+			set = Arrays.copyOf(set, Math.max(4, set.length * 2));
+		}
+		set[size] = value;
+		return set;
+	}
+
+	/**
+	 * Sets up failure and output links with a breadth-first walk of the trie
+	 */
+	private void buildFailureLinks() {
+		int[] queue = new int[fail.length];
+		int head = 0;
+		int tail = 0;
+
+		fail[0] = 0;
+		outputLink[0] = -1;
+		for (int i = edgeStart[0]; i < edgeStart[1]; i++) {
+			int child = edgeNext[i];
+			fail[child] = 0;
+			outputLink[child] = -1;
+			queue[tail] = child;
+			tail++;
+		}
+
+		while (head < tail) {
+			int state = queue[head];
+			head++;
+			for (int i = edgeStart[state]; i < edgeStart[state + 1]; i++) {
+				char c = edgeKeys[i];
+				int child = edgeNext[i];
+
+				int f = fail[state];
+				while (f != 0 && transition(f, c) == -1) {
+					f = fail[f];
+				}
+				int target = transition(f, c);
+				fail[child] = target == -1 ? 0 : target;
+
+				if (rank[fail[child]] != -1) {
+					outputLink[child] = fail[child];
+				} else {
+					outputLink[child] = outputLink[fail[child]];
+				}
+
+				queue[tail] = child;
+				tail++;
+			}
+		}
+	}
+
+	/**
+	 * Follows the trie edge from a state with a given character
+	 * @param state The state to move from
+	 * @param c The character to follow
+	 * @return The state reached, or -1 if there is no such edge
+	 */
+	private int transition(int state, char c) {
+		int index = Arrays.binarySearch(edgeKeys, edgeStart[state], edgeStart[state + 1], c);
+		if (index < 0) {
+			return -1;
+		}
+		return edgeNext[index];
+	}
+
+	/**
+	 * Roughly works out how much memory the automaton takes up, on a 64-bit JVM. The
+	 * replacements are shared with the mappings, so only the array holding them is counted.
+	 * @return The amount of bytes
+	 */
+	long estimateBytes() {
+		long bytes = 16 + 8L * replacements.length + 16 + 4L * targetLengths.length;
+		bytes += 16 + 4L * edgeStart.length + 16 + 2L * edgeKeys.length + 16 + 4L * edgeNext.length;
+		return bytes + 3 * (16 + 4L * fail.length);
+	}
+
+	/**
+	 * Replaces every target found in the input with its replacement. Matches are taken
+	 * left to right without overlapping, and when several mappings match at the same
+	 * position, the one earliest in the list is used.
+	 * @param input The text to replace targets in
+	 * @param output Where the changed text is written. Nothing is written if no targets are found.
+	 * @return How many targets were replaced
+	 */
+	int replaceAll(CharSequence input, StringBuilder output) {
+		return replaceAll(input, input, output);
+	}
+
+	/**
+	 * Replaces every target found in one text, copying everything else from another
+	 * text of the same length
+	 * @param text The text to search for targets
+	 * @param source The text to copy unchanged parts from
+	 * @param output Where the changed text is written. Nothing is written if no targets are found.
+	 * @return How many targets were replaced
+	 */
+	int replaceAll(CharSequence text, CharSequence source, StringBuilder output) {
+		// only allocated once something is found, since most words have no targets
+		long[] found = null;
+		int numFound = 0;
+
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int target = transition(state, c);
+			while (target == -1 && state != 0) {
+				state = fail[state];
+				target = transition(state, c);
+			}
+			state = target == -1 ? 0 : target;
+
+			int out = rank[state] != -1 ? state : outputLink[state];
+			while (out != -1) {
+				int r = rank[out];
+				int start = i + 1 - targetLengths[r];
+				if (found == null) {
+					found = new long[16];
+				} else if (numFound == found.length) {
+					found = Arrays.copyOf(found, found.length * 2);
+				}
+				found[numFound] = ((long) start << 32) | r;
+				numFound++;
+				out = outputLink[out];
+			}
+		}
+
+		if (numFound == 0) {
+			return 0;
+		}
+
+		// sorting by start, then by rank, puts the match to use at each position first
+		Arrays.sort(found, 0, numFound);
+
+		int copied = 0;
+		int replaced = 0;
+		for (int i = 0; i < numFound; i++) {
+			int start = (int) (found[i] >>> 32);
+			int r = (int) found[i];
+			if (start >= copied) {
+				output.append(source, copied, start);
+				output.append(replacements[r]);
+				copied = start + targetLengths[r];
+				replaced++;
+			}
+		}
+		output.append(source, copied, source.length());
+
+		return replaced;
+	}
+
+}
@@ -1,28 +1,61 @@
 package net.oijon.osca;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import net.oijon.olog.Log;
 import net.oijon.osca.exception.InvalidRuleSyntaxException;
 
 /**
  * Creates an object that can be used to change text based on a target, replacement,
- * environment, and exception.
+ * environment, and exception. Rules are immutable once created, except for the counters
+ * RuleMetrics attaches the first time a rule is run while metrics are on. Those are set
+ * once under a lock, published through a volatile field, and only changed through
+ * atomic counters, so a rule can still be shared between threads and used from any number
+ * of threads at once.
  */
 public class Rule {
 	
 	static Log log = new Log(System.getProperty("user.home") + "/.osca");
+	
+	private static final CategoryContext NO_CATEGORIES = new CategoryContext(new ArrayList<Category>());
 
 	protected static char[] whitespaces = {' ', '\t', '\n', '\r', '\f'};
 	
-	String target = "";
-	String replacement = "";
-	String environment = "";
-	String exception = "";
-	ArrayList<Category> categories = new ArrayList<Category>();
-	ArrayList<String[]> mappings = new ArrayList<String[]>();
-	ArrayList<String> exceptions = new ArrayList<String>();
+	final String target;
+	final String replacement;
+	final String environment;
+	final String exception;
+	// the categories this rule was compiled with, including its own nonce categories
+	private final CategoryContext context;
+	// the nonce categories found in the rule, which its context adds to the one it was given
+	final ArrayList<Category> nonces;
+	// the target/replacement pairs the rule was expanded into. A rule loaded from a
+	// CompiledRuleFile with an automaton only decodes these when they are asked for.
+	final List<String[]> mappings;
+	// every string the exception can stand for, only listed when the pattern can't check it
+	final ArrayList<String> exceptions = new ArrayList<String>();
+	final RulePattern pattern;
+	final MappingAutomaton automaton;
+	private final boolean hasExceptions;
+	// whether the rule is run on a copy of the word with whitespace around it, since
+	// mappings only match the edges of a word that way
+	private final boolean padded;
+	// rules out words the rule can't change, or null if every word must be checked
+	private final CharFilter filter;
+	// what the rule has done while metrics were on, or null if it hasn't been run with them
+	// on. This is the only thing about a rule that changes, and is only set by RuleMetrics.
+	volatile RuleMetrics.Counters counters;
+	// how long the rule took to compile
+	private final long compileNanos;
+	// how many strings the rule would have been expanded into, if that was over its
+	// budget and it was left unexpanded, or -1
+	private final long rejectedExpansions;
 	
 	/**
 	 * Creates a rule based on an input string
@@ -30,10 +63,7 @@ public class Rule {
 	 * @throws InvalidRuleSyntaxException Thrown when ruleStr does not follow the expected X/Y/Z/A format
 	 */
 	public Rule(String ruleStr) throws InvalidRuleSyntaxException {
-		parseInputString(ruleStr);
-		parseNonceCategories();
-		generateMappings();
-		parseOptionals();
+		this(parseInputString(ruleStr), NO_CATEGORIES, null);
 	}
 	/**
 	 * Creates a rule based on an input string and a list of categories
@@ -42,11 +72,18 @@ public class Rule {
 	 * @throws InvalidRuleSyntaxException Thrown when ruleStr does not follow the expected X/Y/Z/A format
 	 */
 	public Rule(String ruleStr, ArrayList<Category> categories) throws InvalidRuleSyntaxException {
-		parseInputString(ruleStr);
-		this.categories = categories;
-		parseNonceCategories();
-		generateMappings();
-		parseOptionals();
+		this(parseInputString(ruleStr), new CategoryContext(categories), null);
+	}
+	
+	/**
+	 * Creates a rule based on an input string and a shared category context. This is
+	 * the fastest way to compile many rules with the same categories.
+	 * @param ruleStr The string to make the rule from
+	 * @param context The categories to use
+	 * @throws InvalidRuleSyntaxException Thrown when ruleStr does not follow the expected X/Y/Z/A format
+	 */
+	public Rule(String ruleStr, CategoryContext context) throws InvalidRuleSyntaxException {
+		this(parseInputString(ruleStr), context, null);
 	}
 	
 	/**
@@ -57,13 +94,7 @@ public class Rule {
 	 * @param categories The list of categories to use
 	 */
 	public Rule(String target, String replacement, String environment, ArrayList<Category> categories) {
-		this.target = target;
-		this.replacement = replacement;
-		this.environment = environment;
-		this.categories = categories;
-		parseNonceCategories();
-		generateMappings();
-		parseOptionals();
+		this(target, replacement, environment, "", new CategoryContext(categories), null, false);
 	}
 	
 	/**
@@ -73,12 +104,7 @@ public class Rule {
 	 * @param environment The environment for the rule
 	 */
 	public Rule(String target, String replacement, String environment) {
-		this.target = target;
-		this.replacement = replacement;
-		this.environment = environment;
-		parseNonceCategories();
-		generateMappings();
-		parseOptionals();
+		this(target, replacement, environment, "", NO_CATEGORIES, null, false);
 	}
 	
 	/**
@@ -89,13 +115,7 @@ public class Rule {
 	 * @param exception The exception for the rule; when the rule should not apply
 	 */
 	public Rule(String target, String replacement, String environment, String exception) {
-		this.target = target;
-		this.replacement = replacement;
-		this.environment = environment;
-		this.exception = exception;
-		parseNonceCategories();
-		generateMappings();
-		parseOptionals();
+		this(target, replacement, environment, exception, NO_CATEGORIES, null, false);
 	}
 	/**
 	 * Creates a rule with a given target, replacement, environment, and exception, along with a list of categories
@@ -106,88 +126,382 @@ public class Rule {
 	 * @param categories The list of categories to use
 	 */
 	public Rule(String target, String replacement, String environment, String exception, ArrayList<Category> categories) {
+		this(target, replacement, environment, exception, new CategoryContext(categories), null, false);
+	}
+	
+	/**
+	 * Creates a rule with a given target, replacement, environment, and exception, along with a shared category context
+	 * @param target The target for the rule
+	 * @param replacement The replacement for the rule
+	 * @param environment The environment for the rule
+	 * @param exception The exception for the rule; when the rule should not apply
+	 * @param context The categories to use
+	 */
+	public Rule(String target, String replacement, String environment, String exception, CategoryContext context) {
+		this(target, replacement, environment, exception, context, null, false);
+	}
+	
+	/**
+	 * Creates a rule from the parts of a rule string
+	 * @param parts The target, replacement, environment, and exception
+	 * @param context The categories to use
+	 * @param budget The most the rule may be expanded into, or null for no limit
+	 */
+	private Rule(String[] parts, CategoryContext context, CompileBudget budget) {
+		this(parts[0], parts[1], parts[2], parts[3], context, budget, false);
+	}
+	
+	/**
+	 * Creates a rule based on an input string and a shared category context, rejecting
+	 * it if it would be expanded into more strings than a budget allows. The amount is
+	 * worked out from the sizes of the categories before anything is expanded, so an
+	 * expensive rule is turned down without paying for it.
+	 * @param ruleStr The string to make the rule from
+	 * @param context The categories to use
+	 * @param budget The most the rule may be expanded into, or null for no limit
+	 * @throws InvalidRuleSyntaxException Thrown when ruleStr does not follow the expected X/Y/Z/A
+	 * format, or the rule would expand into more than the budget allows
+	 */
+	public Rule(String ruleStr, CategoryContext context, CompileBudget budget) throws InvalidRuleSyntaxException {
+		this(parseInputString(ruleStr), context, budget);
+		if (rejectedExpansions != -1) {
+			throw new InvalidRuleSyntaxException("Rule " + ruleStr + " would expand into " + rejectedExpansions
+					+ " strings, more than the budget of " + budget.getMaxExpansions());
+		}
+	}
+
+	
+	/**
+	 * Creates and compiles a rule. Nonce categories found in the rule are added to a
+	 * context of the rule's own, so they never leak into the context given, and rules
+	 * sharing a context can be compiled at the same time. Rules that can be matched with
+	 * categories left as sets are compiled into a pattern, and everything else is
+	 * expanded into mappings.
+	 * @param target The target for the rule
+	 * @param replacement The replacement for the rule
+	 * @param environment The environment for the rule
+	 * @param exception The exception for the rule; when the rule should not apply
+	 * @param context The categories to use
+	 * @param budget The most the rule may be expanded into, or null for no limit. A rule
+	 * over its budget is left without mappings, and has rejectedExpansions set.
+	 * @param expandOnly Whether the rule should always be expanded into mappings. This
+	 * is used for each combination of optional elements, whose mappings get merged into
+	 * the rule they came from.
+	 */
+	private Rule(String target, String replacement, String environment, String exception,
+			CategoryContext context, CompileBudget budget, boolean expandOnly) {
+		long start = System.nanoTime();
+		mappings = new ArrayList<String[]>();
+		nonces = new ArrayList<Category>();
+		this.target = parseNonceFromString(target, context, nonces);
+		this.replacement = parseNonceFromString(replacement, context, nonces);
+		this.environment = parseNonceFromString(environment, context, nonces);
+		this.exception = parseNonceFromString(exception, context, nonces);
+		if (nonces.isEmpty()) {
+			this.context = context;
+		} else {
+			this.context = context.with(nonces);
+		}
+		
+		long rejected = -1;
+		if (!expandOnly && canCompileToPattern()) {
+			pattern = RulePattern.compile(this.target, this.replacement, this.environment, this.exception,
+					this.context);
+			// exceptions are checked by the pattern, unless they have no place for the target
+			boolean listExceptions = pattern != null && !this.exception.equals("") && !pattern.hasException();
+			if (listExceptions && budget != null && estimateExceptions() > budget.getMaxExpansions()) {
+				rejected = estimateExceptions();
+			} else if (listExceptions) {
+				ArrayList<String[]> targetReplacementPairs = new ArrayList<String[]>();
+				ArrayList<String> possibleTargets = Category.generateMatchesFromCategoryList(this.context.list(), this.target);
+				for (int i = 0; i < possibleTargets.size(); i++) {
+					String[] newPair = {possibleTargets.get(i), this.replacement};
+					targetReplacementPairs.add(newPair);
+				}
+				processExceptions(targetReplacementPairs);
+			}
+			automaton = null;
+		} else {
+			pattern = null;
+			long expansions = saturatingAdd(estimateMappings(), estimateExceptions());
+			if (budget != null && expansions > budget.getMaxExpansions()) {
+				rejected = expansions;
+				automaton = null;
+			} else {
+				generateMappings();
+				parseOptionals();
+				if (expandOnly || hasWildcardMappings()) {
+					automaton = null;
+				} else {
+					automaton = new MappingAutomaton(mappings);
+				}
+			}
+		}
+		rejectedExpansions = rejected;
+		
+		hasExceptions = hasExceptionStrings();
+		padded = needsPadding();
+		filter = buildFilter();
+		compileNanos = System.nanoTime() - start;
+	}
+	
+	/**
+	 * Recreates a rule from what it was expanded into when it was first compiled, so
+	 * nothing has to be expanded again. Only the pattern is compiled again, and the
+	 * automaton too if it isn't given. When the automaton is given, the mappings are
+	 * never read here, so they can be decoded lazily.
+	 * @param target The target for the rule, with nonce categories already named
+	 * @param replacement The replacement for the rule, with nonce categories already named
+	 * @param environment The environment for the rule, with nonce categories already named
+	 * @param exception The exception for the rule, with nonce categories already named
+	 * @param context The categories the rule was given
+	 * @param nonces The nonce categories the rule made for itself
+	 * @param mappings The mappings the rule was expanded into, which the rule keeps
+	 * @param exceptions The exception strings the rule was expanded into
+	 * @param automaton The automaton built over the mappings, or null to build it again
+	 */
+	Rule(String target, String replacement, String environment, String exception, CategoryContext context,
+			ArrayList<Category> nonces, List<String[]> mappings, List<String> exceptions,
+			MappingAutomaton automaton) {
+		long start = System.nanoTime();
 		this.target = target;
 		this.replacement = replacement;
 		this.environment = environment;
 		this.exception = exception;
-		this.categories = categories;
-		parseNonceCategories();
-		generateMappings();
-		parseOptionals();
+		this.nonces = nonces;
+		if (nonces.isEmpty()) {
+			this.context = context;
+		} else {
+			this.context = context.with(nonces);
+		}
+		this.mappings = mappings;
+		this.exceptions.addAll(exceptions);
+		
+		if (canCompileToPattern()) {
+			pattern = RulePattern.compile(this.target, this.replacement, this.environment, this.exception,
+					this.context);
+			this.automaton = null;
+		} else {
+			pattern = null;
+			if (automaton != null) {
+				this.automaton = automaton;
+			} else if (hasWildcardMappings()) {
+				this.automaton = null;
+			} else {
+				this.automaton = new MappingAutomaton(this.mappings);
+			}
+		}
+		rejectedExpansions = -1;
+		
+		hasExceptions = hasExceptionStrings();
+		padded = needsPadding();
+		filter = buildFilter();
+		compileNanos = System.nanoTime() - start;
+	}
+	
+	/**
+	 * Checks if any exception strings were listed for the rule
+	 * @return true if there is a non-empty exception string, false otherwise
+	 */
+	private boolean hasExceptionStrings() {
+		for (int i = 0; i < exceptions.size(); i++) {
+			if (!exceptions.get(i).isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks if the rule has to be run on a copy of the word with whitespace around it
+	 * @return true if the word should be padded, false otherwise
+	 */
+	private boolean needsPadding() {
+		// the placeholder path never matches at the very start, so it is always padded
+		return pattern == null
+				&& (automaton == null || (target + environment + exception).indexOf('#') != -1);
 	}
 	
 	/**
-	 * Takes a string from a constructor, and parses it into a rule
+	 * Finds the code points that any match of the rule needs, so words without them
+	 * can be skipped
+	 * @return The filter for the rule, or null if no code points are needed
+	 */
+	private CharFilter buildFilter() {
+		ArrayList<int[]> sets = new ArrayList<int[]>();
+		if (pattern != null) {
+			pattern.addRequirements(sets);
+		} else if (automaton != null) {
+			int[] set = automaton.firstCodePoints();
+			if (set != null) {
+				sets.add(set);
+			}
+		} else {
+			// every mapping target has to be found, and leading wildcards are ignored
+			String[] targets = new String[mappings.size()];
+			for (int i = 0; i < targets.length; i++) {
+				String mappingTarget = mappings.get(i)[0];
+				int start = 0;
+				while (start < mappingTarget.length() && mappingTarget.charAt(start) == '…') {
+					start++;
+				}
+				targets[i] = mappingTarget.substring(start);
+			}
+			int[] set = CharFilter.firstCodePoints(targets);
+			if (set != null) {
+				sets.add(set);
+			}
+		}
+		return CharFilter.of(sets);
+	}
+	
+	/**
+	 * Checks if the rule only uses features that a pattern can match directly.
+	 * ² anywhere but after the target is still handled by expanding it into mappings.
+	 * @return true if the rule can be compiled into a pattern, false otherwise
+	 */
+	private boolean canCompileToPattern() {
+		if ((target + replacement + exception).indexOf('²') != -1) {
+			return false;
+		}
+		int underscore = environment.indexOf('_');
+		return underscore == -1 || environment.lastIndexOf('²', underscore) == -1;
+	}
+	
+	/**
+	 * Checks if any mapping has a wildcard. Wildcard targets depend on the input, so
+	 * rules with them can't be matched with an automaton.
+	 * @return true if a mapping target contains a wildcard, false otherwise
+	 */
+	private boolean hasWildcardMappings() {
+		for (int i = 0; i < mappings.size(); i++) {
+			if (mappings.get(i)[0].indexOf('…') != -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Takes a string from a constructor, and splits it into the parts of a rule
 	 * @param ruleStr The string to parse
+	 * @return The target, replacement, environment, and exception of the rule
 	 * @throws InvalidRuleSyntaxException Thrown when there is a syntax error in the rule
 	 */
-	private void parseInputString(String ruleStr) throws InvalidRuleSyntaxException {
+	private static String[] parseInputString(String ruleStr) throws InvalidRuleSyntaxException {
 		String[] split = ruleStr.split("/");
 		if (split.length < 3) {
 			throw new InvalidRuleSyntaxException("Expected 3-4 parameters, got " + split.length);
-		} else {			
-			target = split[0];
-			replacement = split[1];
-			environment = split[2];
+		} else {
+			String[] parts = {split[0], split[1], split[2], ""};
 			if (split.length >= 4) {
-				exception = split[3];
+				parts[3] = split[3];
 			}
+			return parts;
 		}
 	}
 	
 	/**
-	 * Counts the categories in a given string, using the rule's categories.
-	 * Note that this does not count nonce categories.
+	 * Counts the categories in a given string, using the rule's categories
 	 * @param input The string to count the categories in
 	 * @return The amount of categories found in the input
 	 */
 	private int countCategories(String input) {
-		int count = 0;
-		
-		for (int i = 0; i < categories.size(); i++) {
-			boolean foundAll = false;
-			int lastIndex = 0;
-			while (!foundAll) {
-				int index = input.indexOf(categories.get(i).name, lastIndex);
-				if (index == -1) {
-					foundAll = true;
-				} else {
-					count++;
-					lastIndex = index + 1;
-				}
+		return context.countCategories(input);
+	}
+	
+	/**
+	 * Works out how many strings part of the rule stands for once every category in it
+	 * is filled in, without listing them
+	 * @param input The part of the rule
+	 * @return The amount of strings, or Long.MAX_VALUE if there are too many to count
+	 */
+	private long countFilledIn(String input) {
+		long count = 1;
+		int i = 0;
+		while (i < input.length()) {
+			String name = context.matchName(input, i);
+			if (name == null) {
+				i++;
+			} else {
+				count = saturatingMultiply(count, Math.max(1, context.valuesOf(name).size()));
+				i += name.length();
 			}
 		}
-		
 		return count;
 	}
 	
 	/**
-	 * Gets a list of categories found in a string
-	 * @param input The string to find categories in
-	 * @return A list of each category in the given string
+	 * Works out how many ways the optional groups in part of the rule can be filled in
+	 * @param input The part of the rule
+	 * @return The amount of ways, or Long.MAX_VALUE if there are too many to count
 	 */
-	private Category[] getCategoriesFromString(String input) {
-		int numCats = countCategories(input);
-		Category[] categoryIndicies = new Category[numCats];
-		categories.sort((a, b) -> { return -1 * compareStringsBySize(a.name, b.name); } );
-		
-		int numFound = 0;
+	private static long countOptionalVariants(String input) {
+		int groups = 0;
 		for (int i = 0; i < input.length(); i++) {
-			String substring = input.substring(i);
-			for (int j = 0; j < categories.size(); j++) {
-				if (substring.startsWith(categories.get(j).name)) {
-					categoryIndicies[numFound] = categories.get(j);
-					numFound++;
-				}
+			if (input.charAt(i) == '(') {
+				groups++;
 			}
 		}
-		
-		return categoryIndicies;
+		return groups >= 63 ? Long.MAX_VALUE : 1L << groups;
+	}
+	
+	/**
+	 * Works out how many ways the optional groups in the whole rule can be filled in
+	 * @return The amount of ways, or Long.MAX_VALUE if there are too many to count
+	 */
+	private long countOptionalVariants() {
+		long count = saturatingMultiply(countOptionalVariants(target), countOptionalVariants(replacement));
+		count = saturatingMultiply(count, countOptionalVariants(environment));
+		return saturatingMultiply(count, countOptionalVariants(exception));
+	}
+	
+	/**
+	 * Works out at most how many mappings expanding the rule would make. The rule is
+	 * expanded once as written, and once more for each way of filling in its optional
+	 * groups if it has any.
+	 * @return The amount of mappings, or Long.MAX_VALUE if there are too many to count
+	 */
+	private long estimateMappings() {
+		long count = saturatingMultiply(countFilledIn(target), countFilledIn(environment));
+		long variants = countOptionalVariants();
+		return variants == 1 ? count : saturatingMultiply(count, saturatingAdd(variants, 1));
+	}
+	
+	/**
+	 * Works out how many exception strings listing the rule's exceptions would make.
+	 * Every way of filling in the exception is listed once for every way of filling in
+	 * the target.
+	 * @return The amount of exception strings, or Long.MAX_VALUE if there are too many to count
+	 */
+	private long estimateExceptions() {
+		if (exception.isEmpty()) {
+			return 0;
+		}
+		long count = saturatingMultiply(countFilledIn(exception), countOptionalVariants(exception));
+		count = saturatingMultiply(count, countFilledIn(target));
+		return saturatingMultiply(count, countOptionalVariants(target));
+	}
+	
+	private static long saturatingMultiply(long a, long b) {
+		if (a == 0 || b == 0) {
+			return 0;
+		}
+		return a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+	}
+	
+	private static long saturatingAdd(long a, long b) {
+		return a > Long.MAX_VALUE - b ? Long.MAX_VALUE : a + b;
 	}
 	
 	/**
-	 * Parses optional elements of rules. This is done by creating a new rule for
-	 * each possible combination of optional elements.
+	 * Parses optional elements of rules that are expanded into mappings. This is done by
+	 * creating a new rule for each possible combination of optional elements, so it
+	 * grows exponentially with the number of groups. Only rules that can't be compiled
+	 * into a pattern get here: those with ² in the target, replacement or exception, or
+	 * before the target in the environment. Categories on both sides, wildcards, metathesis
+	 * and ² after the target are all matched by patterns. estimateMappings() counts every
+	 * combination, so a rule given a CompileBudget is rejected before any are created.
 	 */
 	private void parseOptionals() {
 		ArrayList<String> targets = parseOptionalsFromString(target);
@@ -195,7 +509,7 @@ public class Rule {
 		ArrayList<String> environments = parseOptionalsFromString(environment);
 		ArrayList<String> exceptions = parseOptionalsFromString(exception);
 		
-		// TODO: O(n⁴), eek!
+		// TODO: one rule per combination; goes away once ² before the target is a pattern
 		for (int i = 0; i < targets.size(); i++) {
 			for (int j = 0; j < replacements.size(); j++) {
 				for (int k = 0; k < environments.size(); k++) {
@@ -208,7 +522,9 @@ public class Rule {
 									replacements.get(j),
 									environments.get(k),
 									exceptions.get(l),
-									categories);
+									context,
+									null,
+									true);
 							for (int m = 0; m < r.mappings.size(); m++) {
 								mappings.add(r.mappings.get(m));
 							}
@@ -264,7 +580,7 @@ public class Rule {
 	 */
 	private ArrayList<String[]> generateMetathesisMappings() {
 		ArrayList<String[]> targetReplacementPairs = new ArrayList<String[]>();
-		ArrayList<String> possibleTargets = Category.generateMatchesFromCategoryList(categories, target);
+		ArrayList<String> possibleTargets = Category.generateMatchesFromCategoryList(context.list(), target);
 		for (int i = 0; i < possibleTargets.size(); i++) {
 			String reverse = possibleTargets.get(i);
 			StringBuilder reverser = new StringBuilder();
@@ -279,7 +595,7 @@ public class Rule {
 	
 	private ArrayList<String[]> generateManyToOneMappings() {
 		ArrayList<String[]> targetReplacementPairs = new ArrayList<String[]>();
-		ArrayList<String> possibleTargets = Category.generateMatchesFromCategoryList(categories, target);			
+		ArrayList<String> possibleTargets = Category.generateMatchesFromCategoryList(context.list(), target);			
 		for (int i = 0; i < possibleTargets.size(); i++) {
 			String[] newPair = {possibleTargets.get(i), replacement};
 			targetReplacementPairs.add(newPair);
@@ -288,71 +604,68 @@ public class Rule {
 	}
 	
 	/**
-	 * Processes all pairs when both the target and replacement have categories
+	 * Processes all pairs when both the target and replacement have categories. Each
+	 * category in the replacement takes the value at the same index as the category in
+	 * the same place in the target, or the last category in the target if the replacement
+	 * has more, the same as RulePattern does.
 	 * @return All input-output pairs that match the rule
 	 */
 	private ArrayList<String[]> generateManyToManyMappings() {
-		ArrayList<String[]> targetReplacementPairs = new ArrayList<String[]>();
-		
-		// add bare pair, this'll be removed as it iterates
-		String[] barePair = {target, replacement};
-		
-		targetReplacementPairs.add(barePair);
-		
-		Category[] targetCategories = getCategoriesFromString(target);
-		Category[] replacementCategories = getCategoriesFromString(replacement);
-		
-		int loopNum;
-		if (targetCategories.length < replacementCategories.length) {
-			loopNum = targetCategories.length;
-		} else {
-			loopNum = replacementCategories.length;
+		// each concrete target so far, along with the value indexes it was made from
+		ArrayList<String> targets = new ArrayList<String>();
+		ArrayList<int[]> indexes = new ArrayList<int[]>();
+		targets.add("");
+		indexes.add(new int[0]);
+		int i = 0;
+		while (i < target.length()) {
+			String name = context.matchName(target, i);
+			if (name == null) {
+				for (int j = 0; j < targets.size(); j++) {
+					targets.set(j, targets.get(j) + target.charAt(i));
+				}
+				i++;
+				continue;
+			}
+			ArrayList<String> values = context.valuesOf(name);
+			ArrayList<String> newTargets = new ArrayList<String>();
+			ArrayList<int[]> newIndexes = new ArrayList<int[]>();
+			for (int j = 0; j < targets.size(); j++) {
+				int[] old = indexes.get(j);
+				for (int k = 0; k < values.size(); k++) {
+					int[] index = Arrays.copyOf(old, old.length + 1);
+					index[old.length] = k;
+					newTargets.add(targets.get(j) + values.get(k));
+					newIndexes.add(index);
+				}
+			}
+			targets = newTargets;
+			indexes = newIndexes;
+			i += name.length();
 		}
 		
-		for (int i = 0; i < loopNum; i++) {
-			Category targetCat = targetCategories[i];
-			Category replacementCat = replacementCategories[i];
-			
-			ArrayList<String[]> newMappings = new ArrayList<String[]>();
-			ArrayList<String[]> removalList = new ArrayList<String[]>();
-			for (int j = 0; j < targetReplacementPairs.size(); j++) {
-				boolean changedAnything = false;
-				for (int k = 0; k < targetCat.values.size(); k++) {
-					int replacementIndex = k % replacementCat.values.size();
-					
-					String oldTarget = targetReplacementPairs.get(i)[0];
-					String oldReplacement = targetReplacementPairs.get(i)[1];
-					
-					String newTarget = oldTarget.replaceFirst(targetCat.name, targetCat.values.get(k));
-					String newReplacement = oldReplacement.replaceFirst(replacementCat.name, replacementCat.values.get(replacementIndex));
-					
-					if (!newTarget.equals(oldTarget) | !newReplacement.equals(oldReplacement)) {
-						changedAnything = true;
-					}
-					
-					String[] newPair = {newTarget, newReplacement};
-					//System.out.println("[Debug] - " + Arrays.toString(newPair));
-					newMappings.add(newPair);
-					
+		ArrayList<String[]> targetReplacementPairs = new ArrayList<String[]>();
+		for (int j = 0; j < targets.size(); j++) {
+			int[] index = indexes.get(j);
+			StringBuilder newReplacement = new StringBuilder();
+			int category = 0;
+			i = 0;
+			while (i < replacement.length()) {
+				String name = context.matchName(replacement, i);
+				if (name == null) {
+					newReplacement.append(replacement.charAt(i));
+					i++;
+					continue;
 				}
-				if (changedAnything) {
-					removalList.add(targetReplacementPairs.get(j));
+				ArrayList<String> values = context.valuesOf(name);
+				if (!values.isEmpty()) {
+					newReplacement.append(values.get(index[Math.min(category, index.length - 1)] % values.size()));
 				}
+				category++;
+				i += name.length();
 			}
-			
-			/**
-			 * breaks sometimes, should be fine to keep though
-			for (int j = 0; j < removalList.size(); j++) {
-				targetReplacementPairs.remove(removalList.get(j));
-			}
-			**/
-			
-			for (int j = 0; j < newMappings.size(); j++) {
-				targetReplacementPairs.add(newMappings.get(j));
-			}
-						
+			String[] newPair = {targets.get(j), newReplacement.toString()};
+			targetReplacementPairs.add(newPair);
 		}
-		
 		return targetReplacementPairs;
 	}
 	
@@ -361,18 +674,24 @@ public class Rule {
 	 * @param targetReplacementPairs The previously generated target/replacement pairs
 	 */
 	private void processExceptions(ArrayList<String[]> targetReplacementPairs) {
+		// each way of filling in optional groups is an exception of its own
 		ArrayList<String> allExps = new ArrayList<String>();
-		
-		if (countCategories(exception) == 0) {
-			allExps.add(exception);
-		} else {
-			allExps = Category.generateMatchesFromCategoryList(categories, exception);
+		ArrayList<String> expVariants = parseOptionalsFromString(exception);
+		for (int i = 0; i < expVariants.size(); i++) {
+			if (countCategories(expVariants.get(i)) == 0) {
+				allExps.add(expVariants.get(i));
+			} else {
+				allExps.addAll(Category.generateMatchesFromCategoryList(context.list(), expVariants.get(i)));
+			}
 		}
 		
 		for (int i = 0; i < allExps.size(); i++) {
 			for (int j = 0; j < targetReplacementPairs.size(); j++) {
-				String newExp = allExps.get(i).replace("_", targetReplacementPairs.get(j)[0]);
-				exceptions.add(newExp);
+				ArrayList<String> targetVariants = parseOptionalsFromString(targetReplacementPairs.get(j)[0]);
+				for (int k = 0; k < targetVariants.size(); k++) {
+					String newExp = allExps.get(i).replace("_", targetVariants.get(k));
+					exceptions.add(newExp);
+				}
 			}
 		}
 	}
@@ -382,18 +701,18 @@ public class Rule {
 	 * @param targetReplacementPairs All possible target/replacement pairs
 	 */
 	private void processEnvironment(ArrayList<String[]> targetReplacementPairs) {
-		// change ² environment to be compatible with env syntax
-		// change ² environment to be compatible with env syntax
 		ArrayList<String> allEnvs = new ArrayList<String>();
 		
-		if (environment.equals("²")) {
-			environment = "_²";
+		// change ² environment to be compatible with env syntax
+		String env = environment;
+		if (env.equals("²")) {
+			env = "_²";
 		}
 		
-		if (countCategories(environment) == 0) {
-			allEnvs.add(environment);
+		if (countCategories(env) == 0) {
+			allEnvs.add(env);
 		} else {
-			allEnvs = Category.generateMatchesFromCategoryList(categories, environment);
+			allEnvs = Category.generateMatchesFromCategoryList(context.list(), env);
 		}
 		
 		for (int i = 0; i < targetReplacementPairs.size(); i++) {
@@ -417,7 +736,6 @@ public class Rule {
 	 */
 	private void generateMappings() {
 		mappings.clear();
-		categories.add(Category.WHITESPACE);
 		// if a category is given in the target and replacement, the only mapping
 		// should be for the given index
 		
@@ -473,39 +791,15 @@ public class Rule {
 		
 	}
 	
-	/**
-	 * Sorts two strings by length
-	 * @param a The first string to compare
-	 * @param b The second string to compare
-	 * @return -1 if a<b, 0 if a==b, 1 if a>b
-	 */
-	private int compareStringsBySize(String a, String b) {
-		if (a.length() < b.length()) {
-			return -1;
-		} else if (a.length() == b.length()) {
-			return 0;
-		} else {
-			return 1;
-		}
-	}
-	
-	/**
-	 * Parses nonce categories from each field.
-	 */
-	private void parseNonceCategories() {
-		target = parseNonceFromString(target);
-		replacement = parseNonceFromString(replacement);
-		environment = parseNonceFromString(environment);
-		exception = parseNonceFromString(exception);
-	}
-	
 	/**
 	 * Finds nonce categories in a given string, and replaces them with the
 	 * typical category syntax using a temp name
 	 * @param input The string to use
+	 * @param context The categories the rule was given, so temp names don't clash with them
+	 * @param nonces The list to add new nonce categories to
 	 * @return The new string, made to handle typical categories
 	 */
-	private String parseNonceFromString(String input) {
+	private static String parseNonceFromString(String input, CategoryContext context, ArrayList<Category> nonces) {
 		String output = input;
 		
 		boolean done = false;
@@ -518,17 +812,18 @@ public class Rule {
 					String newCategoryString = output.substring(beginIndex, endIndex + 1);
 					boolean named = false;
 					String categoryName = "";
-					int endInt = categories.size();
+					int endInt = context.list().size() + nonces.size();
 					while (!named) {
 						categoryName = "NONCECATEGORY" + endInt;
-						named = true;
-						for (int i = 0; i < categories.size(); i++) {
-							if (categories.get(i).name.equals(categoryName)) {
-								endInt++;
+						named = !context.contains(categoryName);
+						for (int i = 0; i < nonces.size() && named; i++) {
+							if (nonces.get(i).name.equals(categoryName)) {
 								named = false;
-								break;
 							}
 						}
+						if (!named) {
+							endInt++;
+						}
 					}
 					
 					String[] catData = new String[newCategoryString.length() - 2];
@@ -537,8 +832,7 @@ public class Rule {
 					}
 					
 					Category newCategory = new Category(categoryName, catData);
-					categories.add(newCategory);
-					categories.sort((a, b) -> { return -1 * compareStringsBySize(a.name, b.name); } );
+					nonces.add(newCategory);
 					// System.out.println("[Debug] - Added " + categoryName + " with data " + Arrays.toString(catData));
 					output = output.replace(newCategoryString, categoryName);
 					// System.out.println("[Debug] - Output is now " + output);
@@ -661,55 +955,208 @@ public class Rule {
 	}
 	
 	/**
-	 * Takes a string, runs it through the rule, and gives an output.
-	 * @param input The string to run through the rule
-	 * @return The output of the rule on the given string
+	 * Gets the categories this rule was compiled with, including its nonce categories
+	 * @return The rule's category context
 	 */
-	public String parse(String input) {
-		// add whitespace to mark boundaries
-		String output = input;
-		String suffix = "";
-		
-		int firstGlossChar = output.indexOf('‣');
-		if (firstGlossChar != -1) {
-			suffix = output.substring(firstGlossChar);
-			output = output.substring(0, firstGlossChar - 1) + " ";
+	CategoryContext getContext() {
+		return context;
+	}
+	
+	/**
+	 * Reports how the rule was compiled and how much it was expanded
+	 * @return The compile report for the rule
+	 */
+	public RuleReport explain() {
+		RuleReport.Engine engine;
+		if (pattern != null) {
+			engine = RuleReport.Engine.PATTERN;
+		} else if (automaton != null) {
+			engine = RuleReport.Engine.AUTOMATON;
+		} else {
+			engine = RuleReport.Engine.PLACEHOLDERS;
+		}
+		long targets = saturatingMultiply(countFilledIn(target), countOptionalVariants(target));
+		long environments = saturatingMultiply(countFilledIn(environment), countOptionalVariants(environment));
+		int exceptionCount = 0;
+		for (int i = 0; i < exceptions.size(); i++) {
+			if (!exceptions.get(i).isEmpty()) {
+				exceptionCount++;
+			}
+		}
+		return new RuleReport(toString(), engine, targets, environments, mappings.size(), exceptionCount,
+				countOptionalVariants(), estimateRetainedBytes(), compileNanos);
+	}
+	
+	/**
+	 * Roughly works out how much memory the compiled rule takes up, on a 64-bit JVM
+	 * @return The amount of bytes
+	 */
+	private long estimateRetainedBytes() {
+		long bytes = 0;
+		for (int i = 0; i < mappings.size(); i++) {
+			bytes += 32 + stringBytes(mappings.get(i)[0]) + stringBytes(mappings.get(i)[1]);
+		}
+		for (int i = 0; i < exceptions.size(); i++) {
+			bytes += 8 + stringBytes(exceptions.get(i));
+		}
+		if (pattern != null) {
+			bytes += pattern.estimateBytes();
+		}
+		if (automaton != null) {
+			bytes += automaton.estimateBytes();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Roughly works out how much memory a string takes up, on a 64-bit JVM
+	 * @param str The string
+	 * @return The amount of bytes
+	 */
+	static long stringBytes(String str) {
+		return 40 + 2L * str.length();
+	}
+	
+	/**
+	 * Gets the filter that rules out words this rule can't change
+	 * @return The filter, or null if every word has to be checked
+	 */
+	CharFilter getFilter() {
+		return filter;
+	}
+	
+	/**
+	 * Runs the rule over text that has already had its gloss removed
+	 * @param input The text to run the rule over
+	 * @param output Where the changed text is written, if the rule changes anything
+	 * @return true if the rule changed the text, false otherwise
+	 */
+	boolean apply(CharSequence input, StringBuilder output) {
+		if (!RuleMetrics.enabled) {
+			return replace(input, output) > 0;
+		}
+		long start = System.nanoTime();
+		int replaced = replace(input, output);
+		RuleMetrics.record(this, System.nanoTime() - start, replaced);
+		return replaced > 0;
+	}
+	
+	/**
+	 * Replaces every target of the rule in text that has already had its gloss removed,
+	 * without counting it as a run of the rule in RuleMetrics
+	 * @param input The text to run the rule over
+	 * @param output Where the changed text is written, if the rule changes anything
+	 * @return How many targets were replaced
+	 */
+	int replace(CharSequence input, StringBuilder output) {
+		if (filter != null && !filter.mayMatch(input)) {
+			return 0;
+		}
+		if (pattern != null) {
+			ExceptionMask mask = hasExceptions ? ExceptionMask.find(input, exceptions) : null;
+			return pattern.replaceAll(mask == null ? input : mask, input, output);
+		}
+		if (!padded) {
+			return applyMappings(input, output);
 		}
 		
-		// add whitespace
-		output = " " + output + " ";
+		// mappings match the edges of a word as whitespace
+		StringBuilder paddedInput = new StringBuilder(input.length() + 2);
+		paddedInput.append(' ').append(input).append(' ');
+		StringBuilder paddedOutput = new StringBuilder(paddedInput.length());
+		int replaced = applyMappings(paddedInput, paddedOutput);
+		if (replaced > 0) {
+			output.append(paddedOutput, 1, Math.max(paddedOutput.length() - 1, 1));
+		}
+		return replaced;
+	}
+	
+	/**
+	 * Runs the rule's mappings over text
+	 * @param input The text to run the mappings over
+	 * @param output Where the changed text is written, if the mappings change anything
+	 * @return How many targets were replaced, counting the whole text as one if it went
+	 * through placeholders
+	 */
+	private int applyMappings(CharSequence input, StringBuilder output) {
+		if (automaton != null) {
+			// exceptions are hidden from matching, rather than swapped out for placeholders
+			ExceptionMask mask = hasExceptions ? ExceptionMask.find(input, exceptions) : null;
+			return automaton.replaceAll(mask == null ? input : mask, input, output);
+		}
 		
+		// wildcards are resolved against the text, so still go through placeholders
+		String original = input.toString();
 		ArrayList<String[]> newValues = new ArrayList<String[]>();
-		output = parseExceptions(output, newValues);
-		output = parseTargetReplacements(output, newValues);
-		
+		String result = parseTargetReplacements(parseExceptions(original, newValues), newValues);
 		for (int i = 0; i < newValues.size(); i++) {
 			//System.out.println("[Debug] [Output] - " + newValues.get(i)[0] + "→" + newValues.get(i)[1]);
-			output = output.replace(newValues.get(i)[0], newValues.get(i)[1]);
+			result = result.replace(newValues.get(i)[0], newValues.get(i)[1]);
 		}
 		
-		// remove added whitespace
-		output = output.substring(1);
-		output = output.substring(0, output.length() - 1);
-		output = output + suffix;
-		
-		return output;
+		if (result.equals(original)) {
+			return 0;
+		}
+		output.append(result);
+		return 1;
+	}
+	
+	/**
+	 * Takes a string, runs it through the rule, and gives an output.
+	 * @param input The string to run through the rule
+	 * @return The output of the rule on the given string
+	 */
+	public String parse(String input) {
+		// words the rule can't change are given back as they are, unless metrics are on,
+		// since the run is only counted by apply()
+		if (!RuleMetrics.enabled && filter != null && !filter.mayMatch(input)) {
+			return input;
+		}
+		return RuleSet.parse(Collections.singletonList(this), input);
 	}
 	
 	/**
-	 * Parses a list of rules on one string
+	 * Parses a list of rules on one string. For a list that is used over and over,
+	 * a RuleSet avoids copying anything per call.
 	 * @param list The list of rules to use
 	 * @param input The input to be processed
 	 * @return The output of every rule on the input
 	 */
 	public static String parseList(ArrayList<Rule> list, String input) {
-		String output = input;
-		
-		for (int i = 0; i < list.size(); i++) {
-			output = list.get(i).parse(output);
-		}
-		
-		return output;
+		return RuleSet.parse(list, input);
+	}
+	
+	/**
+	 * Parses a list of rules on every word in a lexicon, spread across all cores using
+	 * the common fork-join pool
+	 * @param list The list of rules to use
+	 * @param lexicon The words to be processed
+	 * @return The output of every rule on each word, in the same order as the lexicon
+	 */
+	public static List<String> parseLexicon(ArrayList<Rule> list, List<String> lexicon) {
+		return parseLexicon(list, lexicon, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Parses a list of rules on every word in a lexicon, spread across a given pool
+	 * @param list The list of rules to use
+	 * @param lexicon The words to be processed
+	 * @param pool The fork-join pool to run in
+	 * @return The output of every rule on each word, in the same order as the lexicon
+	 */
+	public static List<String> parseLexicon(ArrayList<Rule> list, List<String> lexicon, ForkJoinPool pool) {
+		return new RuleSet(list).parseLexicon(lexicon, pool);
+	}
+	
+	/**
+	 * Parses a list of rules on every word in a stream, spread across all cores using
+	 * the common fork-join pool. The stream is read in full before any rules are applied.
+	 * @param list The list of rules to use
+	 * @param lexicon The words to be processed
+	 * @return The output of every rule on each word, in the same order as the stream
+	 */
+	public static List<String> parseLexicon(ArrayList<Rule> list, Stream<String> lexicon) {
+		return new RuleSet(list).parseLexicon(lexicon);
 	}
 	
 	/**
@@ -718,16 +1165,64 @@ public class Rule {
 	 * @return an ArrayList of each rule specified
 	 */
 	public static ArrayList<Rule> parseFromList(String ruleList) {
-		ArrayList<Rule> rules = new ArrayList<Rule>();
-		
+		return parseFromList(ruleList, NO_CATEGORIES);
+	}
+	
+	/**
+	 * Parses a list of rules that share a set of categories, and makes it an ArrayList
+	 * @param ruleList A list of rules, separated by newlines
+	 * @param context The categories every rule can use
+	 * @return an ArrayList of each rule specified
+	 */
+	public static ArrayList<Rule> parseFromList(String ruleList, CategoryContext context) {
+		return parseFromList(ruleList, context, null);
+	}
+	
+	/**
+	 * Parses a list of rules that share a set of categories, and makes it an ArrayList.
+	 * Rules that would expand into more than the budget allows are skipped, the same as
+	 * rules with bad syntax. Rules are compiled across all cores using the common
+	 * fork-join pool.
+	 * @param ruleList A list of rules, separated by newlines
+	 * @param context The categories every rule can use
+	 * @param budget The most each rule may be expanded into, or null for no limit
+	 * @return an ArrayList of each rule specified
+	 */
+	public static ArrayList<Rule> parseFromList(String ruleList, CategoryContext context, CompileBudget budget) {
+		return parseFromList(ruleList, context, budget, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Parses a list of rules that share a set of categories, and makes it an ArrayList,
+	 * compiling the rules across a given pool. Rules that would expand into more than
+	 * the budget allows are skipped, the same as rules with bad syntax. Skipped lines
+	 * are logged in order once every rule is compiled, so the log is the same however
+	 * the work was spread out, and anything else thrown while compiling is thrown for
+	 * the first line it happened on.
+	 * @param ruleList A list of rules, separated by newlines
+	 * @param context The categories every rule can use
+	 * @param budget The most each rule may be expanded into, or null for no limit
+	 * @param pool The fork-join pool to compile in
+	 * @return an ArrayList of each rule specified, in the same order as the list
+	 */
+	public static ArrayList<Rule> parseFromList(String ruleList, CategoryContext context, CompileBudget budget,
+			ForkJoinPool pool) {
 		String[] split = ruleList.split("\n");
+		Rule[] compiled = new Rule[split.length];
+		Exception[] errors = new Exception[split.length];
+		if (split.length > 0) {
+			pool.invoke(new RuleCompileTask(split, context, budget, compiled, errors, 0, split.length));
+		}
+		
+		ArrayList<Rule> rules = new ArrayList<Rule>();
 		for (int i = 0; i < split.length; i++) {
-			try {
-				Rule r = new Rule(split[i]);
-				rules.add(r);
-			} catch (InvalidRuleSyntaxException e) {
-				log.warn("On line №" + i + " (" + split[i] + "): " + e.toString());
-				e.printStackTrace();
+			if (errors[i] == null) {
+				rules.add(compiled[i]);
+			} else if (errors[i] instanceof RuntimeException) {
+				throw (RuntimeException) errors[i];
+			} else {
+				log.warn("On line №" + i + " (" + split[i] + "): " + errors[i].toString());
+				errors[i].printStackTrace();
 			}
 		}
 		
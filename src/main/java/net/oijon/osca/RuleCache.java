@@ -0,0 +1,198 @@
+package net.oijon.osca;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size-bounded cache of rule set outputs, for lexicons where the same word forms
+ * come up again and again. Entries are keyed by the rule set and the word without
+ * its gloss, so one cache can be shared between several rule sets, and the least
+ * recently used words are dropped once the cache is full. The cache is split into
+ * segments that are locked separately, so it can be used while a lexicon is being
+ * processed in parallel.
+ */
+public final class RuleCache {
+
+	private static final int MAX_SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final int maxSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates an empty cache
+	 * @param maxSize The most words the cache will hold at once
+	 */
+	public RuleCache(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Cache size must be at least 1, was " + maxSize);
+		}
+		this.maxSize = maxSize;
+		// small caches are kept in one segment so the size limit stays exact
+		int numSegments = 1;
+		while (numSegments < MAX_SEGMENTS && maxSize / (numSegments * 2) >= 64) {
+			numSegments *= 2;
+		}
+		segments = new Segment[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			int segmentSize = maxSize / numSegments + (i < maxSize % numSegments ? 1 : 0);
+			segments[i] = new Segment(segmentSize);
+		}
+	}
+
+	/**
+	 * Gets the output of a rule set on a word, running the rules only if the word
+	 * is not already cached
+	 * @param ruleSet The rule set the word is run through
+	 * @param word The word, without its gloss
+	 * @return The output of the rule set on the word
+	 */
+	String get(RuleSet ruleSet, String word) {
+		Key key = new Key(ruleSet, word);
+		Segment segment = segments[(key.hash ^ (key.hash >>> 16)) & (segments.length - 1)];
+		String output;
+		synchronized (segment) {
+			output = segment.get(key);
+		}
+		if (output != null) {
+			hits.increment();
+			return output;
+		}
+		misses.increment();
+		// the rules are run outside the lock; two threads may both run the same word,
+		// but they will always get the same output
+		output = ruleSet.apply(word);
+		synchronized (segment) {
+			segment.put(key, output);
+		}
+		return output;
+	}
+
+	/**
+	 * Removes every word from the cache. The statistics are kept.
+	 */
+	public void clear() {
+		for (int i = 0; i < segments.length; i++) {
+			synchronized (segments[i]) {
+				segments[i].clear();
+			}
+		}
+	}
+
+	/**
+	 * Gets the most words the cache will hold at once
+	 * @return The maximum size of the cache
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets how many words are in the cache right now
+	 * @return The amount of cached words
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < segments.length; i++) {
+			synchronized (segments[i]) {
+				size += segments[i].size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets how many lookups found their word already in the cache
+	 * @return The amount of cache hits
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Gets how many lookups had to run the rules
+	 * @return The amount of cache misses
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Gets how many words were dropped to make room for new ones
+	 * @return The amount of evicted words
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Gets the share of lookups that were hits
+	 * @return The hit rate from 0 to 1, or 0 if nothing has been looked up yet
+	 */
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return "RuleCache[size=" + size() + "/" + maxSize + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+	/**
+	 * A cache key made of a rule set, compared by identity, and a word
+	 */
+	private static final class Key {
+		final RuleSet ruleSet;
+		final String word;
+		final int hash;
+
+		Key(RuleSet ruleSet, String word) {
+			this.ruleSet = ruleSet;
+			this.word = word;
+			this.hash = 31 * System.identityHashCode(ruleSet) + word.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return ruleSet == other.ruleSet && word.equals(other.word);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * One part of the cache, kept in least recently used order
+	 */
+	private final class Segment extends LinkedHashMap<Key, String> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+			if (size() > capacity) {
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package net.oijon.osca;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A fork-join task that compiles a range of lines from a rule list. Each line is
+ * written only to its own slot of the output arrays, so no locking is needed and the
+ * rules stay in the same order as the lines. Lines are split all the way down to one
+ * each, since how long a rule takes to compile depends on how far it is expanded.
+ */
+final class RuleCompileTask extends RecursiveAction {
+
+	private static final long serialVersionUID = -4120963387459816604L;
+
+	private final String[] lines;
+	private final CategoryContext context;
+	private final CompileBudget budget;
+	private final Rule[] rules;
+	private final Exception[] errors;
+	private final int from;
+	private final int to;
+
+	/**
+	 * Creates a task over a range of lines
+	 * @param lines The lines of the rule list
+	 * @param context The categories every rule can use
+	 * @param budget The most each rule may be expanded into, or null for no limit
+	 * @param rules The array to write compiled rules to, the same size as the lines
+	 * @param errors The array to write what was thrown for each bad line to, the same size as the lines
+	 * @param from The first line to compile
+	 * @param to The line after the last one to compile
+	 */
+	RuleCompileTask(String[] lines, CategoryContext context, CompileBudget budget, Rule[] rules,
+			Exception[] errors, int from, int to) {
+		this.lines = lines;
+		this.context = context;
+		this.budget = budget;
+		this.rules = rules;
+		this.errors = errors;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from == 1) {
+			try {
+				rules[from] = new Rule(lines[from], context, budget);
+			} catch (Exception e) {
+				// kept rather than thrown, so the caller sees the first bad line, not the first to finish
+				errors[from] = e;
+			}
+		} else {
+			int middle = (from + to) >>> 1;
+			invokeAll(new RuleCompileTask(lines, context, budget, rules, errors, from, middle),
+					new RuleCompileTask(lines, context, budget, rules, errors, middle, to));
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package net.oijon.osca;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps track of what every rule does when it is run, to find out which rules cost
+ * the most time. Metrics are off until enable() is called; while they are off, running
+ * a rule only checks one flag. Once on, every rule run through Rule.parse, a RuleSet,
+ * a SegmentedRuleSet, or a Lexicon counts how many times it was run, how many words it
+ * changed, how many targets it replaced, and how long each run took. Rules merged into
+ * a table by a FusedRuleSet are not counted, since they are no longer run on their own.
+ * <p>
+ * The numbers can be polled with snapshot(), or read over JMX once registerMBean() has
+ * been called. Rules are only held weakly, so once a rule is no longer used, such as
+ * after a rule file is loaded again, its numbers are dropped along with it.
+ */
+public final class RuleMetrics {
+
+	/**
+	 * The name the metrics are registered under over JMX
+	 */
+	public static final String OBJECT_NAME = "net.oijon.osca:type=RuleMetrics";
+
+	static volatile boolean enabled;
+	// every rule still in use that has been run while metrics were on, in the order they were first run
+	private static final ArrayList<Tracked> TRACKED = new ArrayList<Tracked>();
+	// where rules that have been collected are handed back, so they can be dropped from TRACKED
+	private static final ReferenceQueue<Rule> COLLECTED = new ReferenceQueue<Rule>();
+	// the id given to the next rule that is run, guarded by TRACKED
+	private static long nextId;
+
+	private RuleMetrics() {
+	}
+
+	/**
+	 * Starts keeping track of rules
+	 */
+	public static void enable() {
+		enabled = true;
+	}
+
+	/**
+	 * Stops keeping track of rules. The numbers so far are kept.
+	 */
+	public static void disable() {
+		enabled = false;
+	}
+
+	/**
+	 * Checks if metrics are being kept
+	 * @return true if metrics are on, false otherwise
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets every number back to zero
+	 */
+	public static void reset() {
+		synchronized (TRACKED) {
+			for (int i = 0; i < TRACKED.size(); i++) {
+				Rule rule = TRACKED.get(i).get();
+				if (rule != null) {
+					rule.counters.reset();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the numbers for every rule still in use that has been run while metrics were on
+	 * @return An unmodifiable list of the numbers for each rule, in the order the rules
+	 * were first run
+	 */
+	public static List<RuleStats> snapshot() {
+		ArrayList<RuleStats> stats = new ArrayList<RuleStats>();
+		synchronized (TRACKED) {
+			dropCollected();
+			for (int i = 0; i < TRACKED.size(); i++) {
+				Rule rule = TRACKED.get(i).get();
+				if (rule != null) {
+					stats.add(rule.counters.snapshot());
+				}
+			}
+		}
+		return Collections.unmodifiableList(stats);
+	}
+
+	/**
+	 * Gets the numbers for one rule
+	 * @param rule The rule
+	 * @return The numbers for the rule, or null if it hasn't been run while metrics were on
+	 */
+	public static RuleStats snapshot(Rule rule) {
+		Counters counters = rule.counters;
+		return counters == null ? null : counters.snapshot();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, under OBJECT_NAME. Doing
+	 * this more than once does nothing.
+	 * @throws JMException Thrown if the MBean server refuses the metrics
+	 */
+	public static void registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		synchronized (TRACKED) {
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new MXBean(), name);
+			}
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if they were registered
+	 * @throws JMException Thrown if the MBean server can't remove the metrics
+	 */
+	public static void unregisterMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		synchronized (TRACKED) {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		}
+	}
+
+	/**
+	 * Adds one run of a rule to its numbers
+	 * @param rule The rule that was run
+	 * @param nanos How long the run took, in nanoseconds
+	 * @param replaced How many targets the run replaced
+	 */
+	static void record(Rule rule, long nanos, int replaced) {
+		Counters counters = rule.counters;
+		if (counters == null) {
+			synchronized (TRACKED) {
+				counters = rule.counters;
+				if (counters == null) {
+					dropCollected();
+					counters = new Counters(nextId, rule.toString());
+					nextId++;
+					TRACKED.add(new Tracked(rule));
+					rule.counters = counters;
+				}
+			}
+		}
+		counters.record(nanos, replaced);
+	}
+
+	/**
+	 * Removes rules that have been collected from the list of tracked rules. Must be
+	 * called while holding TRACKED.
+	 */
+	private static void dropCollected() {
+		boolean any = false;
+		while (COLLECTED.poll() != null) {
+			any = true;
+		}
+		if (any) {
+			TRACKED.removeIf(tracked -> tracked.get() == null);
+		}
+	}
+
+	/**
+	 * A rule that has been run while metrics were on. The rule keeps its own counters,
+	 * so they go when it does.
+	 */
+	private static final class Tracked extends WeakReference<Rule> {
+		Tracked(Rule rule) {
+			super(rule, COLLECTED);
+		}
+	}
+
+	/**
+	 * The running numbers for one rule
+	 */
+	static final class Counters {
+		private final long id;
+		private final String rule;
+		private final LongAdder invocations = new LongAdder();
+		private final LongAdder wordsChanged = new LongAdder();
+		private final LongAdder matchesApplied = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		// bucket i counts runs that took from 2^i up to 2^(i+1) nanoseconds, with 0 in bucket 0
+		private final AtomicLongArray histogram = new AtomicLongArray(RuleStats.BUCKETS);
+
+		Counters(long id, String rule) {
+			this.id = id;
+			this.rule = rule;
+		}
+
+		void record(long nanos, int replaced) {
+			invocations.increment();
+			if (replaced > 0) {
+				wordsChanged.increment();
+				matchesApplied.add(replaced);
+			}
+			totalNanos.add(nanos);
+			histogram.incrementAndGet(RuleStats.bucketOf(nanos));
+		}
+
+		void reset() {
+			invocations.reset();
+			wordsChanged.reset();
+			matchesApplied.reset();
+			totalNanos.reset();
+			for (int i = 0; i < histogram.length(); i++) {
+				histogram.set(i, 0);
+			}
+		}
+
+		RuleStats snapshot() {
+			long[] buckets = new long[histogram.length()];
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = histogram.get(i);
+			}
+			return new RuleStats(id, rule, invocations.sum(), wordsChanged.sum(), matchesApplied.sum(),
+					totalNanos.sum(), buckets);
+		}
+	}
+
+	/**
+	 * What is registered over JMX, which reads and changes the static metrics
+	 */
+	private static final class MXBean implements RuleMetricsMXBean {
+
+		@Override
+		public boolean isEnabled() {
+			return RuleMetrics.isEnabled();
+		}
+
+		@Override
+		public void setEnabled(boolean enabled) {
+			RuleMetrics.enabled = enabled;
+		}
+
+		@Override
+		public List<RuleStats> getRules() {
+			return RuleMetrics.snapshot();
+		}
+
+		@Override
+		public void reset() {
+			RuleMetrics.reset();
+		}
+	}
+
+}
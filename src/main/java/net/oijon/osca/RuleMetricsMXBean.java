@@ -0,0 +1,33 @@
+package net.oijon.osca;
+
+import java.util.List;
+
+/**
+ * The view of RuleMetrics given over JMX
+ */
+public interface RuleMetricsMXBean {
+
+	/**
+	 * Checks if metrics are being kept
+	 * @return true if metrics are on, false otherwise
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Turns metrics on or off
+	 * @param enabled Whether metrics should be kept
+	 */
+	void setEnabled(boolean enabled);
+
+	/**
+	 * Gets the numbers for every rule that has been run while metrics were on
+	 * @return The numbers for each rule
+	 */
+	List<RuleStats> getRules();
+
+	/**
+	 * Sets every number back to zero
+	 */
+	void reset();
+
+}
@@ -0,0 +1,1013 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A compiled form of a rule's target, replacement, and environment. Categories are kept
+ * as sets of values and checked for membership while matching, rather than being
+ * expanded into every string they could possibly stand for.
+ */
+final class RulePattern {
+
+	private final Element[] elements;
+	// elements in [targetFrom, targetTo) make up the target
+	private final int targetFrom;
+	private final int targetTo;
+	// how many wildcards are in the target, each of which is copied into the replacement
+	private final int captureCount;
+	// how many categories are in the target, each of which remembers which value it matched
+	private final int categoryCount;
+	private final boolean hasWildcards;
+	// whether the pattern repeats its target, in which case only the target is taken up
+	// by a match and what comes after it is only looked at
+	private final boolean hasRepeats;
+	// the environment the target is not changed in, with the same target, or null if there is none
+	private final RulePattern exception;
+	// the code points any match of the exception needs, or null if none are needed
+	private final CharFilter exceptionFilter;
+	// the shortest and longest the part before the target can be, or -1 if it has no limit
+	private final int minBefore;
+	private final int maxBefore;
+	// what each target is replaced with
+	private final String replacement;
+	// the replacement split around its categories, which have one more part than categories
+	private final String[] replacementParts;
+	// the categories in the replacement, each filled in with the value at the same index
+	// as a category in the target
+	private final CategorySet[] replacementCategories;
+	// whether each target is written back with its segments in reverse order, for metathesis
+	private final boolean reverses;
+
+	private RulePattern(Element[] elements, int targetFrom, int targetTo, int captureCount, int categoryCount,
+			RulePattern exception, String replacement, String[] replacementParts,
+			CategorySet[] replacementCategories, boolean reverses) {
+		this.elements = elements;
+		this.targetFrom = targetFrom;
+		this.targetTo = targetTo;
+		this.captureCount = captureCount;
+		this.categoryCount = categoryCount;
+		this.replacement = replacement;
+		this.replacementParts = replacementParts;
+		this.replacementCategories = replacementCategories;
+		this.reverses = reverses;
+		boolean anyWildcards = false;
+		boolean anyRepeats = false;
+		for (int i = 0; i < elements.length; i++) {
+			anyWildcards |= elements[i] instanceof Wildcard;
+			anyRepeats |= elements[i] instanceof Repeat;
+		}
+		this.hasWildcards = anyWildcards;
+		this.hasRepeats = anyRepeats;
+		this.exception = exception;
+		if (exception != null) {
+			ArrayList<int[]> sets = new ArrayList<int[]>();
+			exception.addRequirements(sets);
+			exceptionFilter = CharFilter.of(sets);
+		} else {
+			exceptionFilter = null;
+		}
+		int[] before = lengthRange(0, targetFrom);
+		minBefore = before[0];
+		maxBefore = before[1];
+	}
+
+	/**
+	 * Compiles a target placed in an environment, with nothing to replace it with
+	 * @param target The target of the rule
+	 * @param environment The environment of the rule, with _ marking the target
+	 * @param context The categories the rule can use
+	 * @return The compiled pattern, or null if the environment has no place for the target
+	 */
+	static RulePattern compile(String target, String environment, CategoryContext context) {
+		return compile(target, "", environment, "", context);
+	}
+
+	/**
+	 * Compiles a rule into a pattern. The exception is checked around each target the
+	 * pattern finds, rather than being searched for on its own. If both the target and
+	 * the replacement have categories, each category in the replacement is filled in with
+	 * the value at the same index as the category in the same place in the target, or the
+	 * last category in the target if the replacement has more. For example, with S=ptk and
+	 * Z=bdg, S/Z turns t into d.
+	 * @param target The target of the rule
+	 * @param replacement The replacement of the rule, or \\\\ to write each target back
+	 * in reverse. Category values are kept whole, so only the order of the segments changes.
+	 * @param environment The environment of the rule, with _ marking the target
+	 * @param exception The exception of the rule, with _ marking the target. If it has no
+	 * place for the target, it is left out of the pattern.
+	 * @param context The categories the rule can use
+	 * @return The compiled pattern, or null if the environment has no place for the target
+	 */
+	static RulePattern compile(String target, String replacement, String environment, String exception,
+			CategoryContext context) {
+		// ² on its own repeats the target right after it
+		if (environment.equals("²")) {
+			environment = "_²";
+		}
+		int underscore = environment.indexOf('_');
+		if (underscore == -1) {
+			return null;
+		}
+		RulePattern exceptionPattern = exception.isEmpty() ? null : compile(target, exception, context);
+
+		// wildcards at the ends of the target don't do anything
+		int from = 0;
+		int to = target.length();
+		while (from < to && target.charAt(from) == '…') {
+			from++;
+		}
+		while (to > from && target.charAt(to - 1) == '…') {
+			to--;
+		}
+
+		ArrayList<Element> elements = new ArrayList<Element>();
+		tokenize(environment.substring(0, underscore), context, elements, null);
+		int targetFrom = elements.size();
+		int[] captures = new int[2];
+		tokenize(target.substring(from, to), context, elements, captures);
+		int targetTo = elements.size();
+		tokenize(environment.substring(underscore + 1), context, elements, null);
+
+		boolean reverses = replacement.equals("\\\\\\\\");
+		ArrayList<String> parts = new ArrayList<String>();
+		ArrayList<CategorySet> categories = new ArrayList<CategorySet>();
+		if (!reverses && captures[1] > 0) {
+			splitReplacement(replacement, context, captures[1], parts, categories);
+		} else {
+			// without categories in the target, category names in the replacement are written as they are
+			parts.add(replacement);
+		}
+
+		return new RulePattern(elements.toArray(new Element[0]), targetFrom, targetTo, captures[0], captures[1],
+				exceptionPattern, replacement, parts.toArray(new String[0]),
+				categories.toArray(new CategorySet[0]), reverses);
+	}
+
+	/**
+	 * Splits a replacement around the categories in it
+	 * @param replacement The replacement to split
+	 * @param context The categories to look for
+	 * @param targetCategories How many categories the target has
+	 * @param parts The list to add the text between categories to
+	 * @param categories The list to add the categories to, each knowing which target
+	 * category it takes its index from
+	 */
+	private static void splitReplacement(String replacement, CategoryContext context, int targetCategories,
+			ArrayList<String> parts, ArrayList<CategorySet> categories) {
+		int copied = 0;
+		int i = 0;
+		while (i < replacement.length()) {
+			String name = context.matchName(replacement, i);
+			if (name == null) {
+				i++;
+				continue;
+			}
+			parts.add(replacement.substring(copied, i));
+			int slot = Math.min(categories.size(), targetCategories - 1);
+			categories.add(new CategorySet(context.valuesOf(name), slot));
+			i += name.length();
+			copied = i;
+		}
+		parts.add(replacement.substring(copied));
+	}
+
+	/**
+	 * Checks if a pattern has an exception compiled into it
+	 * @return true if the pattern has an exception, false otherwise
+	 */
+	boolean hasException() {
+		return exception != null;
+	}
+
+	/**
+	 * Finds how long the text matched by a run of elements can be
+	 * @param from The index of the first element
+	 * @param to The index after the last element
+	 * @return The shortest and longest length, with -1 as the longest if there is no limit
+	 */
+	private int[] lengthRange(int from, int to) {
+		int min = 0;
+		int max = 0;
+		for (int i = from; i < to; i++) {
+			int[] range;
+			if (elements[i] instanceof Optional) {
+				int length = ((Optional) elements[i]).length;
+				range = lengthRange(i + 1, i + 1 + length);
+				range[0] = 0;
+				i += length;
+			} else {
+				range = elements[i].lengthRange();
+			}
+			min += range[0];
+			max = max == -1 || range[1] == -1 ? -1 : max + range[1];
+		}
+		return new int[] {min, max};
+	}
+
+	/**
+	 * Splits a string into literal, category, boundary, wildcard, repeat, and optional
+	 * elements, preferring the longest category name at each position. An optional group in
+	 * parentheses is added as an Optional element, followed by the elements inside it.
+	 * @param input The string to split
+	 * @param context The categories to look for
+	 * @param elements The list to add elements to
+	 * @param captures Counts the wildcards that are copied into the replacement, then the
+	 * categories whose values are used by the replacement, or null if nothing in this
+	 * string is used by the replacement
+	 */
+	private static void tokenize(String input, CategoryContext context, ArrayList<Element> elements,
+			int[] captures) {
+		StringBuilder literal = new StringBuilder();
+		int i = 0;
+		while (i < input.length()) {
+			boolean wildcard = input.charAt(i) == '…';
+			boolean repeat = input.charAt(i) == '²';
+			int close = input.charAt(i) == '(' ? input.indexOf(')', i) : -1;
+			String name = close == -1 && !wildcard && !repeat ? context.matchName(input, i) : null;
+			if (!wildcard && !repeat && close == -1 && name == null) {
+				literal.append(input.charAt(i));
+				i++;
+				continue;
+			}
+			if (literal.length() > 0) {
+				elements.add(new Literal(literal.toString()));
+				literal.setLength(0);
+			}
+			if (repeat) {
+				elements.add(new Repeat());
+				i++;
+			} else if (wildcard) {
+				if (captures != null) {
+					elements.add(new Wildcard(captures[0]));
+					captures[0]++;
+				} else {
+					elements.add(new Wildcard(-1));
+				}
+				i++;
+			} else if (close != -1) {
+				int index = elements.size();
+				elements.add(null);
+				tokenize(input.substring(i + 1, close), context, elements, captures);
+				elements.set(index, new Optional(elements.size() - index - 1));
+				i = close + 1;
+			} else if (name.equals(Category.WHITESPACE.name)) {
+				elements.add(new Boundary());
+				i++;
+			} else if (captures != null) {
+				elements.add(new CategorySet(context.valuesOf(name), captures[1]));
+				captures[1]++;
+				i += name.length();
+			} else {
+				elements.add(new CategorySet(context.valuesOf(name), -1));
+				i += name.length();
+			}
+		}
+		if (literal.length() > 0) {
+			elements.add(new Literal(literal.toString()));
+		}
+	}
+
+	/**
+	 * Tries to match the pattern starting at a given position. Only matches that take
+	 * at least one character, or an edge of the text at a boundary, count, so a pattern
+	 * made only of optional groups still has to match one of them.
+	 * @param text The text to match against
+	 * @param pos The position to start matching at
+	 * @param match Filled with the start and end of the target, if a match is found
+	 * @return The end of the match, or -1 if the pattern does not match here
+	 */
+	private int matchAt(CharSequence text, int pos, Match match) {
+		match.start = pos;
+		return matchFrom(0, text, pos, match);
+	}
+
+	/**
+	 * Matches the elements from a given index onward. When the pattern has wildcards,
+	 * failures past the start of the match are remembered, since they fail the same way
+	 * from any start. This keeps wildcards from searching the same text over and over.
+	 * @param e The index of the element to match next
+	 * @param text The text to match against
+	 * @param pos The position in the text to match at
+	 * @param match Filled with the start and end of the target
+	 * @return The end of the match, or -1 if the remaining elements do not match
+	 */
+	private int matchFrom(int e, CharSequence text, int pos, Match match) {
+		if (e == targetFrom) {
+			if (match.anchored && pos != match.targetStart) {
+				return -1;
+			}
+			match.targetStart = pos;
+		}
+		if (e == targetTo) {
+			if (match.anchored) {
+				if (pos != match.targetEnd) {
+					return -1;
+				}
+			} else if (exception != null && isException(text, match.targetStart, pos, match)) {
+				return -1;
+			}
+			match.targetEnd = pos;
+		}
+		if (match.pieceStarts != null && e >= targetFrom && e < targetTo) {
+			match.pieceStarts[e - targetFrom] = pos;
+		}
+		if (e == elements.length) {
+			return pos > match.start || match.anchored ? pos : -1;
+		}
+		if (match.failed == null || pos == match.start || !remembers(e)) {
+			return elements[e].match(this, e, text, pos, match);
+		}
+		int key = pos * elements.length + e;
+		if (match.failed[key]) {
+			return -1;
+		}
+		int end = elements[e].match(this, e, text, pos, match);
+		if (end == -1) {
+			match.failed[key] = true;
+		}
+		return end;
+	}
+
+	/**
+	 * Checks if failures of an element can be remembered. Once a target has been found,
+	 * whether the rest of the pattern matches can depend on the exception around that
+	 * target, or on the target being repeated, so those elements are never remembered.
+	 * @param e The index of the element
+	 * @return true if failures of the element don't depend on how it was reached
+	 */
+	private boolean remembers(int e) {
+		if (e <= targetFrom) {
+			return true;
+		}
+		if (hasRepeats) {
+			return false;
+		}
+		return exception == null || e > targetTo;
+	}
+
+	/**
+	 * Checks if the exception matches around a target that was found
+	 * @param text The text being matched
+	 * @param targetStart Where the target starts
+	 * @param targetEnd Where the target ends
+	 * @param match The current match, which keeps the state for checking exceptions
+	 * @return true if the target is in the exception's environment, false otherwise
+	 */
+	private boolean isException(CharSequence text, int targetStart, int targetEnd, Match match) {
+		if (match.exception == null) {
+			// words without anything the exception needs never have it checked
+			if (exceptionFilter != null && !exceptionFilter.mayMatch(text)) {
+				match.exceptionPossible = false;
+			}
+			match.exception = new Match(exception);
+			match.exception.anchored = true;
+		}
+		if (!match.exceptionPossible) {
+			return false;
+		}
+		return exception.matchesAround(text, targetStart, targetEnd, match.exception);
+	}
+
+	/**
+	 * Checks if the pattern matches with its target at an exact place
+	 * @param text The text to match against
+	 * @param targetStart Where the target has to start
+	 * @param targetEnd Where the target has to end
+	 * @param match The state to match with, which has to be anchored
+	 * @return true if the pattern matches there, false otherwise
+	 */
+	private boolean matchesAround(CharSequence text, int targetStart, int targetEnd, Match match) {
+		int from = maxBefore == -1 ? 0 : Math.max(0, targetStart - maxBefore);
+		for (int start = targetStart - minBefore; start >= from; start--) {
+			match.start = start;
+			match.targetStart = targetStart;
+			match.targetEnd = targetEnd;
+			if (matchFrom(0, text, start, match) != -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if a character is one of the values of the # category
+	 * @param c The character to check
+	 * @return true if the character is whitespace, false otherwise
+	 */
+	static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+
+	/**
+	 * Roughly works out how much memory the pattern takes up, on a 64-bit JVM. Category
+	 * values are shared with the categories, so only the arrays holding them are counted.
+	 * @return The amount of bytes
+	 */
+	long estimateBytes() {
+		long bytes = 96 + 16 + 8L * elements.length;
+		for (int i = 0; i < elements.length; i++) {
+			bytes += 16;
+			if (elements[i] instanceof CategorySet) {
+				bytes += ((CategorySet) elements[i]).estimateBytes();
+			} else if (elements[i] instanceof Literal) {
+				bytes += Rule.stringBytes(((Literal) elements[i]).value);
+			}
+		}
+		for (int i = 0; i < replacementCategories.length; i++) {
+			bytes += 8 + replacementCategories[i].estimateBytes();
+		}
+		if (exception != null) {
+			bytes += exception.estimateBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Finds the sets of code points that every match of the pattern needs at least
+	 * one of
+	 * @param sets The list to add the sets to
+	 */
+	void addRequirements(ArrayList<int[]> sets) {
+		for (int i = 0; i < elements.length; i++) {
+			elements[i].addRequirements(sets);
+			// nothing inside an optional group is needed
+			if (elements[i] instanceof Optional) {
+				i += ((Optional) elements[i]).length;
+			}
+		}
+	}
+
+	/**
+	 * Makes a copy of the pattern that matches segments instead of characters
+	 * @param inventory The segments to split literals and category values into
+	 * @return The segment pattern, or null if some element, the exception, or the
+	 * replacement can't be handled on segments
+	 */
+	SegmentPattern toSegments(SegmentInventory inventory) {
+		if (exception != null || reverses || replacementCategories.length > 0) {
+			return null;
+		}
+		SegmentPattern.Element[] segmentElements = new SegmentPattern.Element[elements.length];
+		for (int i = 0; i < elements.length; i++) {
+			segmentElements[i] = elements[i].toSegments(inventory);
+			if (segmentElements[i] == null) {
+				return null;
+			}
+		}
+		return new SegmentPattern(segmentElements, targetFrom, targetTo);
+	}
+
+	/**
+	 * Replaces every match of the pattern in the input. Matches are found left to right
+	 * and do not overlap; the environment around a target is left as it was.
+	 * @param input The text to replace targets in
+	 * @param output Where the changed text is written. Nothing is written if there are no matches.
+	 * @return How many targets were replaced
+	 */
+	int replaceAll(CharSequence input, StringBuilder output) {
+		return replaceAll(input, input, output);
+	}
+
+	/**
+	 * Replaces every match of the pattern in one text, copying everything else from another
+	 * text of the same length. This lets parts of the input be hidden from matching
+	 * without changing what is written. Each wildcard in the replacement is filled in with
+	 * what the wildcard in the same place in the target matched; any wildcards past those
+	 * are written as they are.
+	 * @param text The text to match against
+	 * @param source The text to copy unchanged parts from
+	 * @param output Where the changed text is written. Nothing is written if there are no matches.
+	 * @return How many targets were replaced
+	 */
+	int replaceAll(CharSequence text, CharSequence source, StringBuilder output) {
+		Match match = new Match(this);
+		if (reverses) {
+			match.pieceStarts = new int[targetTo - targetFrom];
+		}
+		if (hasWildcards) {
+			match.failed = new boolean[(text.length() + 1) * elements.length];
+		}
+		int replaced = 0;
+		int copied = 0;
+		int pos = 0;
+		// the end of the text is tried too, since a boundary can match there
+		while (pos <= text.length()) {
+			int end = matchAt(text, pos, match);
+			if (end != -1) {
+				replaced++;
+				output.append(source, copied, match.targetStart);
+				if (reverses) {
+					appendReversed(source, match, output);
+				} else if (captureCount == 0 && replacementCategories.length == 0) {
+					output.append(replacement);
+				} else {
+					appendReplacement(source, match, output);
+				}
+				copied = match.targetEnd;
+				if (hasRepeats) {
+					// the next target can be one of the repeats, so a run is handled in one pass
+					pos = Math.max(match.targetEnd, pos + 1);
+					continue;
+				}
+				// a match that reached the end has taken up the edge there too
+				if (end == text.length()) {
+					break;
+				}
+				// a match that only took up an edge can't be found at the same place again
+				pos = end > pos ? end : pos + 1;
+			} else {
+				pos++;
+			}
+		}
+		if (replaced > 0) {
+			output.append(source, copied, source.length());
+		}
+		return replaced;
+	}
+
+	/**
+	 * Writes the replacement, filling in its wildcards with what the target's wildcards
+	 * matched, and its categories with the values at the indexes the target's categories
+	 * matched
+	 * @param source The text to copy matched text from
+	 * @param match The match the wildcards and categories come from
+	 * @param output Where the replacement is written
+	 */
+	private void appendReplacement(CharSequence source, Match match, StringBuilder output) {
+		int capture = 0;
+		for (int p = 0; p < replacementParts.length; p++) {
+			String part = replacementParts[p];
+			int copied = 0;
+			for (int i = 0; i < part.length() && capture < captureCount; i++) {
+				if (part.charAt(i) == '…') {
+					output.append(part, copied, i);
+					output.append(source, match.captures[capture * 2], match.captures[capture * 2 + 1]);
+					capture++;
+					copied = i + 1;
+				}
+			}
+			output.append(part, copied, part.length());
+			if (p < replacementCategories.length) {
+				CategorySet category = replacementCategories[p];
+				int index = match.values[category.slot];
+				// a category in a skipped optional group has no value to fill in
+				if (index != -1 && category.values.length > 0) {
+					output.append(category.values[index % category.values.length]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the target of a match with its segments in reverse order. Each character of
+	 * a literal is its own segment, while a category value, or the text a wildcard or
+	 * boundary matched, is kept whole.
+	 * @param source The text to copy the target from
+	 * @param match The match to reverse the target of
+	 * @param output Where the reversed target is written
+	 */
+	private void appendReversed(CharSequence source, Match match, StringBuilder output) {
+		int end = match.targetEnd;
+		for (int i = targetTo - 1; i >= targetFrom; i--) {
+			int start = match.pieceStarts[i - targetFrom];
+			if (start == -1 || elements[i] instanceof Optional) {
+				continue;
+			}
+			if (elements[i] instanceof Literal) {
+				int c = end;
+				while (c > start) {
+					int length = Character.isLowSurrogate(source.charAt(c - 1)) && c - 2 >= start ? 2 : 1;
+					output.append(source, c - length, c);
+					c -= length;
+				}
+			} else {
+				output.append(source, start, end);
+			}
+			end = start;
+		}
+	}
+
+	/**
+	 * Where the current match is, and what has been learned about the text so far
+	 */
+	private static final class Match {
+		int start;
+		int targetStart;
+		int targetEnd;
+		// the start and end of each target wildcard
+		final int[] captures;
+		// the index of the value each target category matched, or -1 if it was in a
+		// skipped optional group
+		final int[] values;
+		// for each position and element, whether the rest of the pattern is known to fail there
+		boolean[] failed;
+		// whether the target is fixed in place, when checking an exception around it
+		boolean anchored;
+		// the state for checking the exception, made the first time a target is found
+		Match exception;
+		boolean exceptionPossible = true;
+		// where each target element started matching, or -1 if it was in a skipped optional
+		// group, when the target is reversed
+		int[] pieceStarts;
+
+		Match(RulePattern pattern) {
+			captures = new int[pattern.captureCount * 2];
+			values = new int[pattern.categoryCount];
+		}
+	}
+
+	/**
+	 * A single position in a pattern
+	 */
+	private abstract static class Element {
+		/**
+		 * Matches this element, then the rest of the pattern
+		 * @param p The pattern this element is in
+		 * @param e The index of this element in the pattern
+		 * @param text The text to match against
+		 * @param pos The position to match at
+		 * @param match Filled with the start and end of the target
+		 * @return The end of the match, or -1 if there is no match
+		 */
+		abstract int match(RulePattern p, int e, CharSequence text, int pos, Match match);
+
+		/**
+		 * Adds the sets of code points this element needs at least one of to match
+		 * @param sets The list to add the sets to
+		 */
+		abstract void addRequirements(ArrayList<int[]> sets);
+
+		/**
+		 * Finds how long the text this element matches can be, not counting any elements
+		 * inside it
+		 * @return The shortest and longest length, with -1 as the longest if there is no limit
+		 */
+		abstract int[] lengthRange();
+
+		/**
+		 * Makes a copy of this element that matches segments
+		 * @param inventory The segments to split values into
+		 * @return The segment element, or null if this element only works on characters
+		 */
+		abstract SegmentPattern.Element toSegments(SegmentInventory inventory);
+	}
+
+	/**
+	 * An element that matches a fixed string
+	 */
+	private static final class Literal extends Element {
+		private final String value;
+
+		Literal(String value) {
+			this.value = value;
+		}
+
+		@Override
+		int match(RulePattern p, int e, CharSequence text, int pos, Match match) {
+			if (pos + value.length() > text.length()) {
+				return -1;
+			}
+			for (int i = 0; i < value.length(); i++) {
+				if (text.charAt(pos + i) != value.charAt(i)) {
+					return -1;
+				}
+			}
+			return p.matchFrom(e + 1, text, pos + value.length(), match);
+		}
+
+		@Override
+		void addRequirements(ArrayList<int[]> sets) {
+			int i = 0;
+			while (i < value.length()) {
+				int c = value.codePointAt(i);
+				sets.add(new int[] {c});
+				i += Character.charCount(c);
+			}
+		}
+
+		@Override
+		int[] lengthRange() {
+			return new int[] {value.length(), value.length()};
+		}
+
+		@Override
+		SegmentPattern.Element toSegments(SegmentInventory inventory) {
+			return new SegmentPattern.Literal(inventory.encode(value));
+		}
+	}
+
+	/**
+	 * An element that marks the start of an optional group. The elements of the group
+	 * come right after it, and matching first tries to skip over them, then to match
+	 * them, so an optional group is left out whenever the rest of the pattern allows.
+	 */
+	private static final class Optional extends Element {
+		// how many of the following elements are inside the group
+		private final int length;
+
+		Optional(int length) {
+			this.length = length;
+		}
+
+		@Override
+		int match(RulePattern p, int e, CharSequence text, int pos, Match match) {
+			if (e >= p.targetFrom && e < p.targetTo) {
+				// nothing in a skipped group is written back
+				for (int i = e + 1; i <= e + length; i++) {
+					if (match.pieceStarts != null) {
+						match.pieceStarts[i - p.targetFrom] = -1;
+					}
+					if (p.elements[i] instanceof CategorySet && ((CategorySet) p.elements[i]).slot != -1) {
+						match.values[((CategorySet) p.elements[i]).slot] = -1;
+					}
+				}
+			}
+			int end = p.matchFrom(e + 1 + length, text, pos, match);
+			if (end != -1) {
+				return end;
+			}
+			return p.matchFrom(e + 1, text, pos, match);
+		}
+
+		@Override
+		void addRequirements(ArrayList<int[]> sets) {
+		}
+
+		@Override
+		int[] lengthRange() {
+			return new int[] {0, 0};
+		}
+
+		@Override
+		SegmentPattern.Element toSegments(SegmentInventory inventory) {
+			return new SegmentPattern.Optional(length);
+		}
+	}
+
+	/**
+	 * An element that matches a word boundary. It takes up a whitespace character if
+	 * there is one, and nothing at the start or end of the text, so words don't need
+	 * whitespace added around them to have their edges matched. A match that only takes
+	 * up the start or end of the text still counts, so a boundary can have something
+	 * added next to it.
+	 */
+	private static final class Boundary extends Element {
+
+		@Override
+		int match(RulePattern p, int e, CharSequence text, int pos, Match match) {
+			// the start of the text only bounds what comes after the target, and the end
+			// only what comes before it
+			if ((pos == 0 && e < p.targetFrom) || (pos == text.length() && e >= p.targetTo)) {
+				// the edge stands in for a character, so the match isn't empty
+				int start = match.start;
+				match.start = -1;
+				int end = p.matchFrom(e + 1, text, pos, match);
+				match.start = start;
+				if (end != -1) {
+					return end;
+				}
+			}
+			if (pos < text.length() && isWhitespace(text.charAt(pos))) {
+				return p.matchFrom(e + 1, text, pos + 1, match);
+			}
+			return -1;
+		}
+
+		@Override
+		void addRequirements(ArrayList<int[]> sets) {
+		}
+
+		@Override
+		int[] lengthRange() {
+			return new int[] {0, 1};
+		}
+
+		@Override
+		SegmentPattern.Element toSegments(SegmentInventory inventory) {
+			return new SegmentPattern.Boundary();
+		}
+	}
+
+	/**
+	 * An element that matches the same text the target matched, written as ². Only the
+	 * target is taken up by a match, and the repeat is left to be the target of the next
+	 * one, so in a run like "mmm", every segment but the last is followed by a repeat of
+	 * itself and is replaced. With an empty replacement this collapses the run to one
+	 * segment; with any other replacement every segment but the last is changed, so
+	 * e/i/_² turns "eeee" into "iiie". Listing the doubled target as a mapping used to
+	 * take up both copies, which gave "ieie" instead.
+	 */
+	private static final class Repeat extends Element {
+
+		@Override
+		int match(RulePattern p, int e, CharSequence text, int pos, Match match) {
+			int length = match.targetEnd - match.targetStart;
+			if (length == 0 || pos + length > text.length()) {
+				return -1;
+			}
+			for (int i = 0; i < length; i++) {
+				if (text.charAt(pos + i) != text.charAt(match.targetStart + i)) {
+					return -1;
+				}
+			}
+			return p.matchFrom(e + 1, text, pos + length, match);
+		}
+
+		@Override
+		void addRequirements(ArrayList<int[]> sets) {
+		}
+
+		@Override
+		int[] lengthRange() {
+			return new int[] {0, -1};
+		}
+
+		@Override
+		SegmentPattern.Element toSegments(SegmentInventory inventory) {
+			return new SegmentPattern.Repeat();
+		}
+	}
+
+	/**
+	 * An element that matches any run of characters, as short as the rest of the pattern
+	 * allows
+	 */
+	private static final class Wildcard extends Element {
+		// which target wildcard this is, or -1 if it isn't in the target
+		private final int capture;
+
+		Wildcard(int capture) {
+			this.capture = capture;
+		}
+
+		@Override
+		int match(RulePattern p, int e, CharSequence text, int pos, Match match) {
+			boolean remember = match.failed != null && p.remembers(e);
+			int end = -1;
+			int to = pos;
+			while (to <= text.length()) {
+				// if this wildcard already failed from here, it fails from here on too
+				if (remember && to > pos && to > match.start && match.failed[to * p.elements.length + e]) {
+					break;
+				}
+				end = p.matchFrom(e + 1, text, to, match);
+				if (end != -1) {
+					break;
+				}
+				to++;
+			}
+			if (end != -1) {
+				if (capture != -1) {
+					match.captures[capture * 2] = pos;
+					match.captures[capture * 2 + 1] = to;
+				}
+				return end;
+			}
+			if (remember) {
+				for (int i = Math.max(pos, match.start) + 1; i < to; i++) {
+					match.failed[i * p.elements.length + e] = true;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		void addRequirements(ArrayList<int[]> sets) {
+		}
+
+		@Override
+		int[] lengthRange() {
+			return new int[] {0, -1};
+		}
+
+		@Override
+		SegmentPattern.Element toSegments(SegmentInventory inventory) {
+			return null;
+		}
+	}
+
+	/**
+	 * An element that matches any value of a category, and remembers which one it matched
+	 */
+	private static final class CategorySet extends Element {
+		private final String[] values;
+		// which target category this is, or -1 if its value isn't used by the replacement
+		private final int slot;
+		// when every value is one character long, membership is a lookup in this array
+		private final char[] singleChars;
+		// the index in values of each of singleChars, taking the first if a value is repeated
+		private final int[] singleIndexes;
+
+		CategorySet(ArrayList<String> values, int slot) {
+			this.values = values.toArray(new String[0]);
+			this.slot = slot;
+			boolean allSingle = true;
+			for (int i = 0; i < this.values.length; i++) {
+				if (this.values[i].length() != 1) {
+					allSingle = false;
+					break;
+				}
+			}
+			if (allSingle) {
+				// sorted by character, then by index
+				long[] keys = new long[this.values.length];
+				for (int i = 0; i < keys.length; i++) {
+					keys[i] = ((long) this.values[i].charAt(0) << 32) | i;
+				}
+				Arrays.sort(keys);
+				int count = 0;
+				for (int i = 0; i < keys.length; i++) {
+					if (i == 0 || keys[i] >>> 32 != keys[i - 1] >>> 32) {
+						keys[count] = keys[i];
+						count++;
+					}
+				}
+				singleChars = new char[count];
+				singleIndexes = new int[count];
+				for (int i = 0; i < count; i++) {
+					singleChars[i] = (char) (keys[i] >>> 32);
+					singleIndexes[i] = (int) keys[i];
+				}
+			} else {
+				singleChars = null;
+				singleIndexes = null;
+			}
+		}
+
+		@Override
+		int match(RulePattern p, int e, CharSequence text, int pos, Match match) {
+			if (singleChars != null) {
+				int found = pos < text.length() ? Arrays.binarySearch(singleChars, text.charAt(pos)) : -1;
+				if (found < 0) {
+					return -1;
+				}
+				if (slot != -1) {
+					match.values[slot] = singleIndexes[found];
+				}
+				return p.matchFrom(e + 1, text, pos + 1, match);
+			}
+			for (int i = 0; i < values.length; i++) {
+				String value = values[i];
+				if (pos + value.length() > text.length()) {
+					continue;
+				}
+				boolean matches = true;
+				for (int j = 0; j < value.length(); j++) {
+					if (text.charAt(pos + j) != value.charAt(j)) {
+						matches = false;
+						break;
+					}
+				}
+				if (matches) {
+					if (slot != -1) {
+						match.values[slot] = i;
+					}
+					int end = p.matchFrom(e + 1, text, pos + value.length(), match);
+					if (end != -1) {
+						return end;
+					}
+				}
+			}
+			return -1;
+		}
+
+		long estimateBytes() {
+			long bytes = 16 + 8L * values.length;
+			if (singleChars != null) {
+				bytes += 16 + 2L * singleChars.length + 16 + 4L * singleIndexes.length;
+			}
+			return bytes;
+		}
+
+		@Override
+		void addRequirements(ArrayList<int[]> sets) {
+			int[] set = CharFilter.firstCodePoints(values);
+			if (set != null) {
+				sets.add(set);
+			}
+		}
+
+		@Override
+		int[] lengthRange() {
+			int min = Integer.MAX_VALUE;
+			int max = 0;
+			for (int i = 0; i < values.length; i++) {
+				min = Math.min(min, values[i].length());
+				max = Math.max(max, values[i].length());
+			}
+			return new int[] {values.length == 0 ? 0 : min, max};
+		}
+
+		@Override
+		SegmentPattern.Element toSegments(SegmentInventory inventory) {
+			int[][] segmentValues = new int[values.length][];
+			for (int i = 0; i < values.length; i++) {
+				segmentValues[i] = inventory.encode(values[i]);
+			}
+			return new SegmentPattern.CategorySet(segmentValues);
+		}
+
+	}
+
+}
@@ -0,0 +1,132 @@
+package net.oijon.osca;
+
+/**
+ * How a rule was compiled, and how much it was expanded to get there
+ */
+public final class RuleReport {
+
+	/**
+	 * The ways a rule can be run
+	 */
+	public enum Engine {
+		/**
+		 * Matched directly, with categories kept as sets
+		 */
+		PATTERN,
+		/**
+		 * Expanded into mappings, which are all searched for at once
+		 */
+		AUTOMATON,
+		/**
+		 * Expanded into mappings, which are swapped out for placeholders one by one
+		 */
+		PLACEHOLDERS
+	}
+
+	private final String rule;
+	private final Engine engine;
+	private final long targetCount;
+	private final long environmentCount;
+	private final long mappingCount;
+	private final long exceptionCount;
+	private final long optionalVariants;
+	private final long estimatedBytes;
+	private final long compileNanos;
+
+	RuleReport(String rule, Engine engine, long targetCount, long environmentCount, long mappingCount,
+			long exceptionCount, long optionalVariants, long estimatedBytes, long compileNanos) {
+		this.rule = rule;
+		this.engine = engine;
+		this.targetCount = targetCount;
+		this.environmentCount = environmentCount;
+		this.mappingCount = mappingCount;
+		this.exceptionCount = exceptionCount;
+		this.optionalVariants = optionalVariants;
+		this.estimatedBytes = estimatedBytes;
+		this.compileNanos = compileNanos;
+	}
+
+	/**
+	 * Gets the rule this report is for
+	 * @return The rule, written as target/replacement/environment/exception
+	 */
+	public String getRule() {
+		return rule;
+	}
+
+	/**
+	 * Gets how the rule is run
+	 * @return The engine the rule was compiled for
+	 */
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Gets how many strings the target stands for, with every category and optional
+	 * group filled in. Only rules that aren't patterns actually list them.
+	 * @return The amount of targets, or Long.MAX_VALUE if there are too many to count
+	 */
+	public long getTargetCount() {
+		return targetCount;
+	}
+
+	/**
+	 * Gets how many strings the environment stands for, with every category and optional
+	 * group filled in
+	 * @return The amount of environments, or Long.MAX_VALUE if there are too many to count
+	 */
+	public long getEnvironmentCount() {
+		return environmentCount;
+	}
+
+	/**
+	 * Gets how many mappings the rule keeps
+	 * @return The amount of mappings, which is 0 for a pattern
+	 */
+	public long getMappingCount() {
+		return mappingCount;
+	}
+
+	/**
+	 * Gets how many exception strings the rule keeps. Exceptions a pattern checks
+	 * directly aren't listed.
+	 * @return The amount of exception strings
+	 */
+	public long getExceptionCount() {
+		return exceptionCount;
+	}
+
+	/**
+	 * Gets how many ways the optional groups in the rule can be filled in
+	 * @return The amount of ways, or Long.MAX_VALUE if there are too many to count
+	 */
+	public long getOptionalVariants() {
+		return optionalVariants;
+	}
+
+	/**
+	 * Gets roughly how much memory the compiled rule takes up, on a 64-bit JVM
+	 * @return The amount of bytes
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+
+	/**
+	 * Gets how long the rule took to compile
+	 * @return The compile time, in nanoseconds
+	 */
+	public long getCompileNanos() {
+		return compileNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "RuleReport[" + rule + ", engine=" + engine + ", targets=" + targetCount + ", environments="
+				+ environmentCount + ", mappings=" + mappingCount + ", exceptions=" + exceptionCount
+				+ ", optionalVariants=" + optionalVariants + ", bytes=" + estimatedBytes + ", compileMicros="
+				+ compileNanos / 1000 + "]";
+	}
+
+}
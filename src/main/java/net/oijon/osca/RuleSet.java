@@ -0,0 +1,230 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An ordered list of rules that are applied to words together. Each word is only
+ * prepared once: the gloss is split off and word boundaries are added, then every
+ * rule runs over a pair of shared buffers, and the gloss is only put back at the end.
+ * Like rules, rule sets are immutable and can be used from many threads at once.
+ * A RuleCache can be given to skip running the rules on words that were seen before.
+ */
+public final class RuleSet {
+
+	// buffers bigger than this are dropped after use rather than kept for the next word
+	private static final int MAX_KEPT_CAPACITY = 1 << 16;
+	private static final ThreadLocal<StringBuilder[]> BUFFERS = ThreadLocal.withInitial(() -> {
+		return new StringBuilder[] {new StringBuilder(64), new StringBuilder(64)};
+	});
+
+	private final List<Rule> rules;
+	private final RuleCache cache;
+
+	/**
+	 * Creates a rule set from a list of rules. The list is copied, so changing it
+	 * afterwards does not change the rule set.
+	 * @param rules The rules to apply, in order
+	 */
+	public RuleSet(List<Rule> rules) {
+		this(rules, null);
+	}
+
+	/**
+	 * Creates a rule set from a list of rules, with a cache for the outputs of words
+	 * @param rules The rules to apply, in order
+	 * @param cache The cache to keep outputs in, or null to not cache anything
+	 */
+	public RuleSet(List<Rule> rules, RuleCache cache) {
+		this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
+		this.cache = cache;
+	}
+
+	/**
+	 * Parses a list of rules that share a set of categories into a rule set
+	 * @param ruleList A list of rules, separated by newlines
+	 * @param context The categories every rule can use
+	 * @return A rule set with each rule specified
+	 */
+	public static RuleSet parseFromList(String ruleList, CategoryContext context) {
+		return new RuleSet(Rule.parseFromList(ruleList, context));
+	}
+
+	/**
+	 * Gets the rules in this set
+	 * @return An unmodifiable list of the rules, in order
+	 */
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Gets the cache this rule set keeps outputs in
+	 * @return The cache, or null if outputs are not cached
+	 */
+	public RuleCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Reports how each rule in the set was compiled and how much it was expanded
+	 * @return An unmodifiable list of the report for each rule, in order
+	 */
+	public List<RuleReport> explain() {
+		ArrayList<RuleReport> reports = new ArrayList<RuleReport>();
+		for (int i = 0; i < rules.size(); i++) {
+			reports.add(rules.get(i).explain());
+		}
+		return Collections.unmodifiableList(reports);
+	}
+
+	/**
+	 * Runs every rule in the set over a string
+	 * @param input The string to run through the rules
+	 * @return The output of every rule on the given string
+	 */
+	public String parse(String input) {
+		if (cache == null) {
+			return parse(rules, input);
+		}
+		int firstGlossChar = input.indexOf('‣');
+		if (firstGlossChar == 0) {
+			return input;
+		} else if (firstGlossChar == -1) {
+			return cache.get(this, input);
+		}
+		int bodyEnd = bodyEnd(input, firstGlossChar);
+		return cache.get(this, input.substring(0, bodyEnd)) + input.substring(bodyEnd);
+	}
+
+	/**
+	 * Runs every rule in the set over a word that has no gloss
+	 * @param word The word to run through the rules
+	 * @return The output of every rule on the word
+	 */
+	String apply(String word) {
+		return apply(rules, word);
+	}
+
+	/**
+	 * Runs every rule in the set over every word in a lexicon, spread across all cores
+	 * using the common fork-join pool
+	 * @param lexicon The words to be processed
+	 * @return The output of every rule on each word, in the same order as the lexicon
+	 */
+	public List<String> parseLexicon(List<String> lexicon) {
+		return parseLexicon(lexicon, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Runs every rule in the set over every word in a lexicon, spread across a given pool
+	 * @param lexicon The words to be processed
+	 * @param pool The fork-join pool to run in
+	 * @return The output of every rule on each word, in the same order as the lexicon
+	 */
+	public List<String> parseLexicon(List<String> lexicon, ForkJoinPool pool) {
+		if (!(lexicon instanceof RandomAccess)) {
+			lexicon = new ArrayList<String>(lexicon);
+		}
+		String[] output = new String[lexicon.size()];
+		if (output.length > 0) {
+			int threshold = LexiconTask.threshold(output.length, pool.getParallelism());
+			pool.invoke(new LexiconTask(this, lexicon, output, 0, output.length, threshold));
+		}
+		return Arrays.asList(output);
+	}
+
+	/**
+	 * Runs every rule in the set over every word in a stream, spread across all cores
+	 * using the common fork-join pool. The stream is read in full before any rules are applied.
+	 * @param lexicon The words to be processed
+	 * @return The output of every rule on each word, in the same order as the stream
+	 */
+	public List<String> parseLexicon(Stream<String> lexicon) {
+		return parseLexicon(lexicon.collect(Collectors.toList()));
+	}
+
+	/**
+	 * Runs a list of rules over a string. The gloss, anything from '‣' on, is set aside,
+	 * and word boundaries are matched at the edges of what is left. Each rule then reads
+	 * from one buffer and writes to the other, and the buffers are only swapped when a
+	 * rule actually changes something. The buffers are kept for the next word on the
+	 * same thread, so a word only allocates its output.
+	 * @param rules The rules to apply, in order
+	 * @param input The string to run through the rules
+	 * @return The output of every rule on the given string
+	 */
+	static String parse(List<Rule> rules, String input) {
+		int firstGlossChar = input.indexOf('‣');
+		if (firstGlossChar == 0) {
+			return input;
+		} else if (firstGlossChar == -1) {
+			return apply(rules, input);
+		}
+		int bodyEnd = bodyEnd(input, firstGlossChar);
+		return apply(rules, input.substring(0, bodyEnd)) + input.substring(bodyEnd);
+	}
+
+	/**
+	 * Finds where the word ends in a string with a gloss. The space before the '‣' is
+	 * kept with the gloss, so it isn't taken as the end of the word.
+	 * @param input The string with a gloss
+	 * @param firstGlossChar The index of the first '‣'
+	 * @return The index the word ends at
+	 */
+	static int bodyEnd(String input, int firstGlossChar) {
+		return input.charAt(firstGlossChar - 1) == ' ' ? firstGlossChar - 1 : firstGlossChar;
+	}
+
+	/**
+	 * Runs a list of rules over a word that has no gloss
+	 * @param rules The rules to apply, in order
+	 * @param body The word to run through the rules
+	 * @return The output of every rule on the word
+	 */
+	private static String apply(List<Rule> rules, String body) {
+		// each thread keeps its own pair of buffers between words
+		StringBuilder[] buffers = BUFFERS.get();
+		StringBuilder current = buffers[0];
+		StringBuilder next = buffers[1];
+
+		current.setLength(0);
+		current.append(body);
+
+		boolean changed = false;
+		for (int i = 0; i < rules.size(); i++) {
+			next.setLength(0);
+			if (rules.get(i).apply(current, next)) {
+				StringBuilder swap = current;
+				current = next;
+				next = swap;
+				changed = true;
+			}
+		}
+
+		String output = changed ? current.toString() : body;
+		if (current.capacity() > MAX_KEPT_CAPACITY || next.capacity() > MAX_KEPT_CAPACITY) {
+			BUFFERS.remove();
+		}
+		return output;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < rules.size(); i++) {
+			if (i > 0) {
+				str.append('\n');
+			}
+			str.append(rules.get(i).toString());
+		}
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,138 @@
+package net.oijon.osca;
+
+/**
+ * The numbers RuleMetrics kept for one rule, as they were when the snapshot was taken
+ */
+public final class RuleStats {
+
+	static final int BUCKETS = 64;
+
+	private final long id;
+	private final String rule;
+	private final long invocations;
+	private final long wordsChanged;
+	private final long matchesApplied;
+	private final long totalNanos;
+	private final long[] histogram;
+
+	RuleStats(long id, String rule, long invocations, long wordsChanged, long matchesApplied, long totalNanos,
+			long[] histogram) {
+		this.id = id;
+		this.rule = rule;
+		this.invocations = invocations;
+		this.wordsChanged = wordsChanged;
+		this.matchesApplied = matchesApplied;
+		this.totalNanos = totalNanos;
+		this.histogram = histogram;
+	}
+
+	/**
+	 * Finds which histogram bucket a run time goes in
+	 * @param nanos The run time, in nanoseconds
+	 * @return The bucket, which counts times from 2^bucket up to 2^(bucket+1) nanoseconds
+	 */
+	static int bucketOf(long nanos) {
+		return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	/**
+	 * Gets the id given to the rule the first time it was run with metrics on. Rules
+	 * written the same way, such as one rule from two loads of the same rule file, have
+	 * different ids.
+	 * @return The id, unique among every rule run in this process
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the rule these numbers are for
+	 * @return The rule, written as target/replacement/environment
+	 */
+	public String getRule() {
+		return rule;
+	}
+
+	/**
+	 * Gets how many times the rule was run, once for each word it was run over
+	 * @return The amount of runs
+	 */
+	public long getInvocations() {
+		return invocations;
+	}
+
+	/**
+	 * Gets how many words the rule changed
+	 * @return The amount of changed words
+	 */
+	public long getWordsChanged() {
+		return wordsChanged;
+	}
+
+	/**
+	 * Gets how many targets the rule replaced. Rules that still go through placeholders,
+	 * such as ones with wildcards that can't be compiled into a pattern, count each word
+	 * they change as one.
+	 * @return The amount of replaced targets
+	 */
+	public long getMatchesApplied() {
+		return matchesApplied;
+	}
+
+	/**
+	 * Gets how long every run of the rule took together
+	 * @return The total time, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * Gets how long a run of the rule took on average
+	 * @return The average time in nanoseconds, or 0 if the rule was never run
+	 */
+	public double getMeanNanos() {
+		return invocations == 0 ? 0 : (double) totalNanos / invocations;
+	}
+
+	/**
+	 * Gets how many runs took each amount of time. Bucket i counts the runs that took
+	 * from 2^i up to 2^(i+1) nanoseconds, and bucket 0 also counts runs too short to measure.
+	 * @return A copy of the 64 buckets
+	 */
+	public long[] getLatencyHistogram() {
+		return histogram.clone();
+	}
+
+	/**
+	 * Estimates how long a run took at a given percentile, from the histogram
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The upper bound of the bucket the percentile falls in, in nanoseconds, or 0
+	 * if the rule was never run
+	 */
+	public long getLatencyPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			total += histogram[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank && seen > 0) {
+				return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return "RuleStats[#" + id + " " + rule + ", invocations=" + invocations + ", wordsChanged=" + wordsChanged
+				+ ", matchesApplied=" + matchesApplied + ", meanNanos=" + Math.round(getMeanNanos()) + "]";
+	}
+
+}
@@ -0,0 +1,44 @@
+package net.oijon.osca;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of segment IDs, used like a StringBuilder for segmented words
+ */
+final class SegmentBuffer {
+
+	int[] data;
+	int length;
+
+	SegmentBuffer(int capacity) {
+		data = new int[Math.max(capacity, 8)];
+	}
+
+	void clear() {
+		length = 0;
+	}
+
+	void append(int segment) {
+		if (length == data.length) {
+			data = Arrays.copyOf(data, data.length * 2);
+		}
+		data[length] = segment;
+		length++;
+	}
+
+	/**
+	 * Appends part of an array of segments
+	 * @param segments The segments to copy from
+	 * @param from The first index to copy
+	 * @param to The index after the last one to copy
+	 */
+	void append(int[] segments, int from, int to) {
+		int count = to - from;
+		if (length + count > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+		}
+		System.arraycopy(segments, from, data, length, count);
+		length += count;
+	}
+
+}
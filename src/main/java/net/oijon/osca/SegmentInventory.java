@@ -0,0 +1,162 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The segments words are split into when rules are run on segments instead of
+ * characters. Every value of length two or more found in a category, such as "th" or
+ * "aa", becomes a segment of its own, and words are split by always taking the
+ * longest segment at each position. Any other character is a segment by itself.
+ * Single characters keep their char value as their ID, and multigraphs are numbered
+ * from 0x10000 up, so the two never clash.
+ */
+final class SegmentInventory {
+
+	static final int FIRST_MULTIGRAPH = 0x10000;
+
+	private final String[] multigraphs;
+
+	// a trie of the multigraphs, with transitions sorted by character like MappingAutomaton
+	private final char[][] keys;
+	private final int[][] next;
+	// the multigraph ending at each state, or -1
+	private final int[] ids;
+
+	/**
+	 * Creates an inventory from every category used by a list of rules
+	 * @param rules The rules whose categories should be segments
+	 */
+	SegmentInventory(List<Rule> rules) {
+		LinkedHashSet<String> found = new LinkedHashSet<String>();
+		ArrayList<CategoryContext> seen = new ArrayList<CategoryContext>();
+		for (int i = 0; i < rules.size(); i++) {
+			CategoryContext context = rules.get(i).getContext();
+			boolean alreadySeen = false;
+			for (int j = 0; j < seen.size() && !alreadySeen; j++) {
+				alreadySeen = seen.get(j) == context;
+			}
+			if (alreadySeen) {
+				continue;
+			}
+			seen.add(context);
+			ArrayList<Category> categories = context.list();
+			for (int j = 0; j < categories.size(); j++) {
+				ArrayList<String> values = context.valuesOf(categories.get(j).name);
+				for (int k = 0; k < values.size(); k++) {
+					if (values.get(k).length() > 1) {
+						found.add(values.get(k));
+					}
+				}
+			}
+		}
+		multigraphs = found.toArray(new String[0]);
+
+		ArrayList<HashMap<Character, Integer>> trie = new ArrayList<HashMap<Character, Integer>>();
+		ArrayList<Integer> stateIds = new ArrayList<Integer>();
+		trie.add(new HashMap<Character, Integer>());
+		stateIds.add(-1);
+		for (int i = 0; i < multigraphs.length; i++) {
+			int state = 0;
+			for (int j = 0; j < multigraphs[i].length(); j++) {
+				Integer child = trie.get(state).get(multigraphs[i].charAt(j));
+				if (child == null) {
+					child = trie.size();
+					trie.add(new HashMap<Character, Integer>());
+					stateIds.add(-1);
+					trie.get(state).put(multigraphs[i].charAt(j), child);
+				}
+				state = child;
+			}
+			stateIds.set(state, FIRST_MULTIGRAPH + i);
+		}
+
+		keys = new char[trie.size()][];
+		next = new int[trie.size()][];
+		ids = new int[trie.size()];
+		for (int i = 0; i < trie.size(); i++) {
+			HashMap<Character, Integer> children = trie.get(i);
+			char[] stateKeys = new char[children.size()];
+			int k = 0;
+			for (Character c : children.keySet()) {
+				stateKeys[k] = c;
+				k++;
+			}
+			Arrays.sort(stateKeys);
+			int[] stateNext = new int[stateKeys.length];
+			for (int j = 0; j < stateKeys.length; j++) {
+				stateNext[j] = children.get(stateKeys[j]);
+			}
+			keys[i] = stateKeys;
+			next[i] = stateNext;
+			ids[i] = stateIds.get(i);
+		}
+	}
+
+	/**
+	 * Gets how many multigraphs are in the inventory
+	 * @return The amount of segments longer than one character
+	 */
+	int multigraphCount() {
+		return multigraphs.length;
+	}
+
+	/**
+	 * Splits text into segments, taking the longest segment at each position
+	 * @param text The text to split
+	 * @param output Where the segment IDs are added
+	 */
+	void encode(CharSequence text, SegmentBuffer output) {
+		int i = 0;
+		while (i < text.length()) {
+			int longestId = text.charAt(i);
+			int longestEnd = i + 1;
+			int state = 0;
+			for (int j = i; j < text.length(); j++) {
+				int index = Arrays.binarySearch(keys[state], text.charAt(j));
+				if (index < 0) {
+					break;
+				}
+				state = next[state][index];
+				if (ids[state] != -1) {
+					longestId = ids[state];
+					longestEnd = j + 1;
+				}
+			}
+			output.append(longestId);
+			i = longestEnd;
+		}
+	}
+
+	/**
+	 * Splits a string into segments
+	 * @param text The string to split
+	 * @return The segment IDs
+	 */
+	int[] encode(String text) {
+		SegmentBuffer output = new SegmentBuffer(text.length() + 1);
+		encode(text, output);
+		return Arrays.copyOf(output.data, output.length);
+	}
+
+	/**
+	 * Turns segments back into text
+	 * @param segments The segment IDs
+	 * @param length How many segments to use
+	 * @param output Where the text is written
+	 */
+	void decode(int[] segments, int length, StringBuilder output) {
+		for (int i = 0; i < length; i++) {
+			int segment = segments[i];
+			if (segment < FIRST_MULTIGRAPH) {
+				output.append((char) segment);
+			} else {
+				output.append(multigraphs[segment - FIRST_MULTIGRAPH]);
+			}
+		}
+	}
+
+}
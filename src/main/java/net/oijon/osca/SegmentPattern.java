@@ -0,0 +1,308 @@
+package net.oijon.osca;
+
+import java.util.Arrays;
+
+/**
+ * A rule pattern that matches words split into segments. It has the same elements as
+ * the RulePattern it was made from, but compares segment IDs instead of characters,
+ * so a category value like "th" only ever matches a whole "th" segment.
+ */
+final class SegmentPattern {
+
+	private final Element[] elements;
+	private final int targetFrom;
+	private final int targetTo;
+	private final boolean hasRepeats;
+	// every match needs one of these segments, or null if any word might match
+	private final int[] required;
+
+	SegmentPattern(Element[] elements, int targetFrom, int targetTo) {
+		this.elements = elements;
+		this.targetFrom = targetFrom;
+		this.targetTo = targetTo;
+		boolean anyRepeats = false;
+		for (int i = 0; i < elements.length; i++) {
+			anyRepeats |= elements[i] instanceof Repeat;
+		}
+		hasRepeats = anyRepeats;
+
+		int[] narrowest = null;
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i] instanceof Optional) {
+				// nothing inside an optional group is needed
+				i += ((Optional) elements[i]).length;
+				continue;
+			}
+			int[] set = elements[i].firstSegments();
+			if (set != null && Arrays.binarySearch(set, ' ') < 0
+					&& (narrowest == null || set.length < narrowest.length)) {
+				narrowest = set;
+			}
+		}
+		required = narrowest;
+	}
+
+	/**
+	 * Checks if any segment the pattern needs is in a word
+	 * @param text The segments of the word
+	 * @param length How many segments the word has
+	 * @return false if the pattern can't match, true if it might
+	 */
+	boolean mayMatch(int[] text, int length) {
+		if (required == null) {
+			return true;
+		}
+		for (int i = 0; i < length; i++) {
+			if (Arrays.binarySearch(required, text[i]) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces every match of the pattern. Matches are found left to right and do not
+	 * overlap, the same as RulePattern.
+	 * @param text The segments to match against
+	 * @param source The segments to copy unchanged parts from
+	 * @param length How many segments there are
+	 * @param replacement The segments to replace each target with
+	 * @param output Where the changed segments are written. Nothing is written if there are no matches.
+	 * @return How many targets were replaced
+	 */
+	int replaceAll(int[] text, int[] source, int length, int[] replacement, SegmentBuffer output) {
+		int[] bounds = new int[3];
+		int replaced = 0;
+		int copied = 0;
+		int pos = 0;
+		while (pos <= length) {
+			bounds[2] = pos;
+			int end = matchFrom(0, text, length, pos, bounds);
+			if (end != -1) {
+				replaced++;
+				output.append(source, copied, bounds[0]);
+				output.append(replacement, 0, replacement.length);
+				copied = bounds[1];
+				if (hasRepeats) {
+					pos = Math.max(bounds[1], pos + 1);
+					continue;
+				}
+				if (end == length) {
+					break;
+				}
+				pos = end > pos ? end : pos + 1;
+			} else {
+				pos++;
+			}
+		}
+		if (replaced > 0) {
+			output.append(source, copied, length);
+		}
+		return replaced;
+	}
+
+	private int matchFrom(int e, int[] text, int length, int pos, int[] bounds) {
+		if (e == targetFrom) {
+			bounds[0] = pos;
+		}
+		if (e == targetTo) {
+			bounds[1] = pos;
+		}
+		if (e == elements.length) {
+			// empty matches never count, the same as in RulePattern
+			return pos > bounds[2] ? pos : -1;
+		}
+		return elements[e].match(this, e, text, length, pos, bounds);
+	}
+
+	/**
+	 * A single position in a segment pattern
+	 */
+	abstract static class Element {
+		abstract int match(SegmentPattern p, int e, int[] text, int length, int pos, int[] bounds);
+
+		/**
+		 * Gets the segments a match of this element can start with
+		 * @return The sorted segment IDs, or null if the element can match without taking any segment
+		 */
+		abstract int[] firstSegments();
+	}
+
+	/**
+	 * An element that matches a fixed run of segments
+	 */
+	static final class Literal extends Element {
+		private final int[] value;
+
+		Literal(int[] value) {
+			this.value = value;
+		}
+
+		@Override
+		int match(SegmentPattern p, int e, int[] text, int length, int pos, int[] bounds) {
+			if (pos + value.length > length) {
+				return -1;
+			}
+			for (int i = 0; i < value.length; i++) {
+				if (text[pos + i] != value[i]) {
+					return -1;
+				}
+			}
+			return p.matchFrom(e + 1, text, length, pos + value.length, bounds);
+		}
+
+		@Override
+		int[] firstSegments() {
+			return value.length == 0 ? null : new int[] {value[0]};
+		}
+	}
+
+	/**
+	 * An element that marks the start of an optional group, the same as in RulePattern
+	 */
+	static final class Optional extends Element {
+		final int length;
+
+		Optional(int length) {
+			this.length = length;
+		}
+
+		@Override
+		int match(SegmentPattern p, int e, int[] text, int length, int pos, int[] bounds) {
+			int end = p.matchFrom(e + 1 + this.length, text, length, pos, bounds);
+			if (end != -1) {
+				return end;
+			}
+			return p.matchFrom(e + 1, text, length, pos, bounds);
+		}
+
+		@Override
+		int[] firstSegments() {
+			return null;
+		}
+	}
+
+	/**
+	 * An element that matches a word boundary, the same as in RulePattern
+	 */
+	static final class Boundary extends Element {
+
+		@Override
+		int match(SegmentPattern p, int e, int[] text, int length, int pos, int[] bounds) {
+			if ((pos == 0 && e < p.targetFrom) || (pos == length && e >= p.targetTo)) {
+				int start = bounds[2];
+				bounds[2] = -1;
+				int end = p.matchFrom(e + 1, text, length, pos, bounds);
+				bounds[2] = start;
+				if (end != -1) {
+					return end;
+				}
+			}
+			if (pos < length && text[pos] < 0x10000 && RulePattern.isWhitespace((char) text[pos])) {
+				return p.matchFrom(e + 1, text, length, pos + 1, bounds);
+			}
+			return -1;
+		}
+
+		@Override
+		int[] firstSegments() {
+			return null;
+		}
+	}
+
+	/**
+	 * An element that matches the same segments the target matched, the same as in RulePattern
+	 */
+	static final class Repeat extends Element {
+
+		@Override
+		int match(SegmentPattern p, int e, int[] text, int length, int pos, int[] bounds) {
+			int size = bounds[1] - bounds[0];
+			if (size == 0 || pos + size > length) {
+				return -1;
+			}
+			for (int i = 0; i < size; i++) {
+				if (text[pos + i] != text[bounds[0] + i]) {
+					return -1;
+				}
+			}
+			return p.matchFrom(e + 1, text, length, pos + size, bounds);
+		}
+
+		@Override
+		int[] firstSegments() {
+			return null;
+		}
+	}
+
+	/**
+	 * An element that matches any value of a category
+	 */
+	static final class CategorySet extends Element {
+		private final int[][] values;
+		// when every value is one segment long, membership is a lookup in this array
+		private final int[] singles;
+
+		CategorySet(int[][] values) {
+			this.values = values;
+			boolean allSingle = true;
+			for (int i = 0; i < values.length && allSingle; i++) {
+				allSingle = values[i].length == 1;
+			}
+			if (allSingle) {
+				int[] ids = new int[values.length];
+				for (int i = 0; i < ids.length; i++) {
+					ids[i] = values[i][0];
+				}
+				Arrays.sort(ids);
+				singles = ids;
+			} else {
+				singles = null;
+			}
+		}
+
+		@Override
+		int match(SegmentPattern p, int e, int[] text, int length, int pos, int[] bounds) {
+			if (singles != null) {
+				if (pos < length && Arrays.binarySearch(singles, text[pos]) >= 0) {
+					return p.matchFrom(e + 1, text, length, pos + 1, bounds);
+				}
+				return -1;
+			}
+			for (int i = 0; i < values.length; i++) {
+				int[] value = values[i];
+				if (pos + value.length > length) {
+					continue;
+				}
+				boolean matches = true;
+				for (int j = 0; j < value.length && matches; j++) {
+					matches = text[pos + j] == value[j];
+				}
+				if (matches) {
+					int end = p.matchFrom(e + 1, text, length, pos + value.length, bounds);
+					if (end != -1) {
+						return end;
+					}
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		int[] firstSegments() {
+			if (singles != null) {
+				return singles;
+			}
+			int[] ids = new int[values.length];
+			for (int i = 0; i < values.length; i++) {
+				if (values[i].length == 0) {
+					return null;
+				}
+				ids[i] = values[i][0];
+			}
+			Arrays.sort(ids);
+			return ids;
+		}
+	}
+
+}
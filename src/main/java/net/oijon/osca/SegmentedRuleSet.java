@@ -0,0 +1,235 @@
+package net.oijon.osca;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a rule set on words split into segments rather than characters. Every
+ * category value made of more than one character, such as "th" or "aa", is a single
+ * segment, so a rule targeting "t" won't touch the "t" in "th", and matching is done
+ * by comparing segment IDs. Words are split once before the first rule and only
+ * turned back into text after the last one. Rules that can't be matched on segments
+ * are still run on the text of the word in between.
+ * <p>
+ * Since output is never split again until the end, a replacement that happens to
+ * spell out a multigraph (for example "t" followed by an inserted "h") stays as two
+ * segments for the rest of the rule set. Like a RuleSet, a SegmentedRuleSet is
+ * immutable and can be used from many threads at once.
+ */
+public final class SegmentedRuleSet {
+
+	private static final int MAX_KEPT_CAPACITY = 1 << 16;
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(() -> { return new Buffers(); });
+
+	private final RuleSet rules;
+	private final SegmentInventory inventory;
+	private final Step[] steps;
+
+	/**
+	 * Creates a segmented version of a rule set. The segments are taken from every
+	 * category the rules use.
+	 * @param rules The rules to run
+	 */
+	public SegmentedRuleSet(RuleSet rules) {
+		this.rules = rules;
+		List<Rule> list = rules.getRules();
+		inventory = new SegmentInventory(list);
+		steps = new Step[list.size()];
+		for (int i = 0; i < steps.length; i++) {
+			steps[i] = new Step(list.get(i), inventory);
+		}
+	}
+
+	/**
+	 * Gets the rule set this was made from
+	 * @return The rule set
+	 */
+	public RuleSet getRuleSet() {
+		return rules;
+	}
+
+	/**
+	 * Gets how many of the rules run directly on segments. The rest have to be run on
+	 * the text of each word.
+	 * @return The amount of rules matched on segments
+	 */
+	public int segmentRuleCount() {
+		int count = 0;
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i].pattern != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Runs every rule in the set over a string
+	 * @param input The string to run through the rules
+	 * @return The output of every rule on the given string
+	 */
+	public String parse(String input) {
+		int firstGlossChar = input.indexOf('‣');
+		if (firstGlossChar == 0) {
+			return input;
+		} else if (firstGlossChar == -1) {
+			return apply(input);
+		}
+		int bodyEnd = RuleSet.bodyEnd(input, firstGlossChar);
+		return apply(input.substring(0, bodyEnd)) + input.substring(bodyEnd);
+	}
+
+	/**
+	 * Runs every rule over a word that has no gloss
+	 * @param body The word to run through the rules
+	 * @return The output of every rule on the word
+	 */
+	private String apply(String body) {
+		Buffers buffers = BUFFERS.get();
+		SegmentBuffer current = buffers.first;
+		SegmentBuffer next = buffers.second;
+
+		current.clear();
+		inventory.encode(body, current);
+
+		boolean changed = false;
+		for (int i = 0; i < steps.length; i++) {
+			next.clear();
+			if (steps[i].apply(current, next, buffers, inventory)) {
+				SegmentBuffer swap = current;
+				current = next;
+				next = swap;
+				changed = true;
+			}
+		}
+
+		String output = body;
+		if (changed) {
+			StringBuilder text = buffers.text;
+			text.setLength(0);
+			inventory.decode(current.data, current.length, text);
+			output = text.toString();
+		}
+		if (current.data.length > MAX_KEPT_CAPACITY || next.data.length > MAX_KEPT_CAPACITY
+				|| buffers.text.capacity() > MAX_KEPT_CAPACITY) {
+			BUFFERS.remove();
+		}
+		return output;
+	}
+
+	/**
+	 * One rule, along with its segment pattern if it has one
+	 */
+	private static final class Step {
+		final Rule rule;
+		final SegmentPattern pattern;
+		final int[] replacement;
+		final int[][] exceptions;
+
+		Step(Rule rule, SegmentInventory inventory) {
+			this.rule = rule;
+			pattern = rule.pattern == null ? null : rule.pattern.toSegments(inventory);
+			replacement = inventory.encode(rule.replacement);
+			ArrayList<int[]> encoded = new ArrayList<int[]>();
+			for (int i = 0; i < rule.exceptions.size(); i++) {
+				if (!rule.exceptions.get(i).isEmpty()) {
+					encoded.add(inventory.encode(rule.exceptions.get(i)));
+				}
+			}
+			exceptions = encoded.toArray(new int[0][]);
+		}
+
+		/**
+		 * Runs the rule over a segmented word
+		 * @param input The segments of the word
+		 * @param output Where the changed segments are written
+		 * @param buffers Scratch space for this thread
+		 * @param inventory The segments the word is split into
+		 * @return true if the rule changed the word, false otherwise
+		 */
+		boolean apply(SegmentBuffer input, SegmentBuffer output, Buffers buffers, SegmentInventory inventory) {
+			if (pattern == null) {
+				// run on the text, and split the output again
+				StringBuilder text = buffers.text;
+				text.setLength(0);
+				inventory.decode(input.data, input.length, text);
+				StringBuilder changed = buffers.changed;
+				changed.setLength(0);
+				if (!rule.apply(text, changed)) {
+					return false;
+				}
+				inventory.encode(changed, output);
+				return true;
+			}
+
+			if (!RuleMetrics.enabled) {
+				return replace(input, output, buffers) > 0;
+			}
+			long start = System.nanoTime();
+			int replaced = replace(input, output, buffers);
+			RuleMetrics.record(rule, System.nanoTime() - start, replaced);
+			return replaced > 0;
+		}
+
+		/**
+		 * Replaces every target of the segment pattern in a word
+		 * @param input The segments of the word
+		 * @param output Where the changed segments are written
+		 * @param buffers Scratch space for this thread
+		 * @return How many targets were replaced
+		 */
+		private int replace(SegmentBuffer input, SegmentBuffer output, Buffers buffers) {
+			if (!pattern.mayMatch(input.data, input.length)) {
+				return 0;
+			}
+			int[] text = input.data;
+			if (exceptions.length > 0) {
+				text = mask(input, buffers.masked);
+			}
+			return pattern.replaceAll(text, input.data, input.length, replacement, output);
+		}
+
+		/**
+		 * Hides every exception in a word, the same way ExceptionMask does for text
+		 * @param input The segments of the word
+		 * @param masked Where the hidden copy is made
+		 * @return The segments with every exception replaced by -1
+		 */
+		private int[] mask(SegmentBuffer input, SegmentBuffer masked) {
+			masked.clear();
+			masked.append(input.data, 0, input.length);
+			int[] text = masked.data;
+			for (int i = 0; i < exceptions.length; i++) {
+				int[] exception = exceptions[i];
+				int pos = 0;
+				while (pos + exception.length <= input.length) {
+					boolean matches = true;
+					for (int j = 0; j < exception.length && matches; j++) {
+						matches = text[pos + j] == exception[j];
+					}
+					if (matches) {
+						for (int j = 0; j < exception.length; j++) {
+							text[pos + j] = -1;
+						}
+						pos += exception.length;
+					} else {
+						pos++;
+					}
+				}
+			}
+			return text;
+		}
+	}
+
+	/**
+	 * The scratch space each thread keeps between words
+	 */
+	private static final class Buffers {
+		final SegmentBuffer first = new SegmentBuffer(64);
+		final SegmentBuffer second = new SegmentBuffer(64);
+		final SegmentBuffer masked = new SegmentBuffer(64);
+		final StringBuilder text = new StringBuilder(64);
+		final StringBuilder changed = new StringBuilder(64);
+	}
+
+}
@@ -4,13 +4,45 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import net.oijon.osca.Category;
+import net.oijon.osca.CategoryContext;
+import net.oijon.osca.CompileBudget;
+import net.oijon.osca.CompiledRuleFile;
+import net.oijon.osca.FusedRuleSet;
+import net.oijon.osca.Lexicon;
+import net.oijon.osca.LexiconProcessor;
 import net.oijon.osca.Rule;
+import net.oijon.osca.RuleCache;
+import net.oijon.osca.RuleMetrics;
+import net.oijon.osca.RuleReport;
+import net.oijon.osca.RuleSet;
+import net.oijon.osca.RuleStats;
+import net.oijon.osca.SegmentedRuleSet;
 import net.oijon.osca.exception.InvalidRuleSyntaxException;
 
 public class UnitTests {
@@ -420,6 +452,896 @@ public class UnitTests {
 	}
 	
 	
+	// overlapping matches are taken left to right
+	@Test
+	void overlappingMatches() {
+		String[] voicedVals = {"b", "d", "g"};
+		Category voiced = new Category("Z", voicedVals);
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(voiced);
+		
+		try {
+			Rule rule = new Rule("Z//_Z", cats);
+			String output = rule.parse("oudbdtuu");
+			assertEquals("oubdtuu", output);
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// large categories
+	@Test
+	void largeCategories() {
+		String[] consonantVals = {"p", "t", "k", "b", "d", "g", "m", "n", "ŋ", "f",
+				"s", "ʃ", "x", "h", "v", "z", "l", "r", "j", "w"};
+		String[] vowelVals = {"a", "e", "i", "o", "u", "ə", "ɨ"};
+		Category consonants = new Category("C", consonantVals);
+		Category vowels = new Category("V", vowelVals);
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(consonants);
+		cats.add(vowels);
+		
+		try {
+			Rule rule = new Rule("CVCVC/ta/#_#", cats);
+			String output = rule.parse("kanəl pat mitaŋ ʃoruzi");
+			assertEquals("ta pat ta ʃoruzi", output);
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// parallel lexicon processing
+	@Test
+	void parseLexicon() {
+		String[] voicelessVals = {"p", "t", "k"};
+		String[] voicedVals = {"b", "d", "g"};
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+		cats.add(new Category("V", vowelVals));
+		
+		try {
+			ArrayList<Rule> rules = new ArrayList<Rule>();
+			rules.add(new Rule("S/Z/V_V", cats));
+			rules.add(new Rule("V/ə/_#", cats));
+			rules.add(new Rule("k/tʃ/_[ie]", cats));
+			
+			ArrayList<String> lexicon = new ArrayList<String>();
+			for (int i = 0; i < 5000; i++) {
+				lexicon.add("pa" + "kite".substring(i % 4) + "tupo".substring(i % 3) + " ‣ " + i);
+			}
+			
+			List<String> output = Rule.parseLexicon(rules, lexicon, new ForkJoinPool(4));
+			assertEquals(lexicon.size(), output.size());
+			for (int i = 0; i < lexicon.size(); i++) {
+				assertEquals(Rule.parseList(rules, lexicon.get(i)), output.get(i));
+			}
+			
+			output = Rule.parseLexicon(rules, lexicon.stream());
+			for (int i = 0; i < lexicon.size(); i++) {
+				assertEquals(Rule.parseList(rules, lexicon.get(i)), output.get(i));
+			}
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// compiling and parsing from many threads at once, with one shared category list
+	@Test
+	void concurrentRules() throws Exception {
+		String[] voicelessVals = {"p", "t", "k"};
+		String[] voicedVals = {"b", "d", "g"};
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+		cats.add(new Category("V", vowelVals));
+		
+		String[] ruleStrs = {"S/Z/V_V", "k/g/_[aeiou]", "S/Z/V(S)_(m)V", "V/a/_#", "t/d/_/#_", "Va/\\\\\\\\/_"};
+		String[] words = {"qitpa kita tikma", "akka kke ikki kko ukku", "pia pai puoa", "tatada ‣ test"};
+		
+		ArrayList<Rule> shared = new ArrayList<Rule>();
+		String[][] expected = new String[ruleStrs.length][words.length];
+		for (int i = 0; i < ruleStrs.length; i++) {
+			Rule rule = new Rule(ruleStrs[i], cats);
+			shared.add(rule);
+			for (int j = 0; j < words.length; j++) {
+				expected[i][j] = rule.parse(words[j]);
+			}
+		}
+		assertEquals(3, cats.size());
+		
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 8; t++) {
+				results.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						for (int n = 0; n < 200; n++) {
+							for (int i = 0; i < ruleStrs.length; i++) {
+								Rule fresh = new Rule(ruleStrs[i], cats);
+								for (int j = 0; j < words.length; j++) {
+									if (!expected[i][j].equals(fresh.parse(words[j]))
+											|| !expected[i][j].equals(shared.get(i).parse(words[j]))) {
+										return false;
+									}
+								}
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (int t = 0; t < results.size(); t++) {
+				assertTrue(results.get(t).get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		
+		// the caller's list is never touched
+		assertEquals(3, cats.size());
+	}
+	
+	// one category context shared by a whole rule list
+	@Test
+	void sharedCategoryContext() {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		String[] longVals = {"aa", "ee"};
+		String[] stopVals = {"p", "t", "k"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		cats.add(new Category("VV", longVals));
+		cats.add(new Category("Vowels", vowelVals));
+		cats.add(new Category("S", stopVals));
+		CategoryContext context = new CategoryContext(cats);
+		
+		ArrayList<Rule> rules = Rule.parseFromList("VV/a/_S\nS/b/Vowels_V\nk/g/_[VS]", context);
+		assertEquals(3, rules.size());
+		assertEquals("pabu ibu ", Rule.parseList(rules, "peetu ipu "));
+		assertEquals("gagpe", Rule.parseList(rules, "kakpe"));
+		
+		// changing the list later doesn't change the context
+		cats.clear();
+		try {
+			Rule rule = new Rule("V/o/_#", context);
+			assertEquals("po to", rule.parse("pa te"));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// a rule set gives the same output as running the rules one by one
+	@Test
+	void ruleSet() {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		
+		ArrayList<Rule> rules = Rule.parseFromList("t/d/V_V\nd/ð/_#\na/e/#_\nk/g/_[VS]", new CategoryContext(cats));
+		RuleSet ruleSet = new RuleSet(rules);
+		assertEquals(4, ruleSet.getRules().size());
+		
+		String[] words = {"atata", "katad ‣ gloss", "kad kata", "", "‣ only gloss"};
+		for (int i = 0; i < words.length; i++) {
+			String expected = words[i];
+			for (int j = 0; j < rules.size(); j++) {
+				expected = rules.get(j).parse(expected);
+			}
+			assertEquals(expected, ruleSet.parse(words[i]));
+		}
+		assertEquals("edata", ruleSet.parse("atata"));
+		assertEquals("gadað ‣ gloss", ruleSet.parse("katad ‣ gloss"));
+	}
+	
+	// cached words give the same output, and glosses are not part of the key
+	@Test
+	void ruleCache() {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		
+		ArrayList<Rule> rules = Rule.parseFromList("t/d/V_V\nd/ð/_#", new CategoryContext(cats));
+		RuleCache cache = new RuleCache(2);
+		RuleSet cached = new RuleSet(rules, cache);
+		RuleSet uncached = new RuleSet(rules);
+		
+		String[] words = {"atad", "ota", "atad", "atad ‣ one", "atad ‣ two", "ota", "ito", "‣ gloss"};
+		for (int i = 0; i < words.length; i++) {
+			assertEquals(uncached.parse(words[i]), cached.parse(words[i]));
+		}
+		
+		// the space before a gloss goes with the gloss, so "atad ‣ one" is the word "atad"
+		assertEquals(4, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.size());
+		assertEquals(4.0 / 7, cache.getHitRate(), 0.0001);
+		assertEquals("adað ‣ two", cached.parse("atad ‣ two"));
+		
+		// rule sets sharing a cache do not see each other's words
+		RuleSet other = new RuleSet(Rule.parseFromList("a/e/_", new CategoryContext(cats)), cache);
+		assertEquals("ete", other.parse("ata"));
+		assertEquals("ada", cached.parse("ata"));
+		
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+	
+	// stream a lexicon file through a rule file, in order, keeping glosses
+	@Test
+	void lexiconProcessor(@TempDir Path dir) {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		CategoryContext context = new CategoryContext(cats);
+		
+		StringBuilder lexicon = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			lexicon.append("katəta").append(i % 7 == 0 ? " ‣ ŋloss " + i : "").append(i % 5 == 0 ? "\r\n" : "\n");
+			expected.append("kadəda").append(i % 7 == 0 ? " ‣ ŋloss " + i : "").append("\n");
+		}
+		lexicon.append("tat");
+		expected.append("təð");
+		
+		try {
+			Path ruleFile = dir.resolve("rules.txt");
+			Path input = dir.resolve("lexicon.txt");
+			Path output = dir.resolve("output.txt");
+			Files.write(ruleFile, "a/ə/_t#\r\nt/d/[Və]_\nd/ð/_#".getBytes(StandardCharsets.UTF_8));
+			Files.write(input, lexicon.toString().getBytes(StandardCharsets.UTF_8));
+			
+			RuleSet rules = LexiconProcessor.readRules(ruleFile, context);
+			assertEquals(3, rules.getRules().size());
+			
+			assertEquals(1001, new LexiconProcessor(rules).process(input, output));
+			assertEquals(expected.toString(), new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+			
+			ForkJoinPool pool = new ForkJoinPool(4);
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				LexiconProcessor processor = new LexiconProcessor(rules, pool, 16);
+				processor.process(Channels.newChannel(new ByteArrayInputStream(Files.readAllBytes(input))),
+						Channels.newChannel(bytes));
+				assertEquals(expected.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+			} finally {
+				pool.shutdown();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	// rules skip words they can't change, including with characters outside the BMP
+	@Test
+	void characterPrefilter() {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		
+		Rule rule = new Rule("p", "b", "V_V", cats);
+		String word = "tik tok";
+		assertTrue(word == rule.parse(word));
+		assertEquals("aba", rule.parse("apa"));
+		assertEquals("pp ‣ apa", rule.parse("pp ‣ apa"));
+		
+		Rule supplementary = new Rule("\uD800\uDF30", "k", "_#");
+		assertEquals("pa", supplementary.parse("pa"));
+		assertEquals("pak", supplementary.parse("pa\uD800\uDF30"));
+		assertEquals("pa\uD800\uDF31", supplementary.parse("pa\uD800\uDF31"));
+		
+		// wildcards are only checked for what comes after a leading …
+		Rule wildcard = new Rule("…t", "d", "_");
+		assertEquals("pa", wildcard.parse("pa"));
+		assertEquals("pad", wildcard.parse("pat"));
+	}
+	
+	// an indexed lexicon gives the same output as running each word through the rules
+	@Test
+	void indexedLexicon() {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		String[] stopVals = {"p", "t", "k"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		cats.add(new Category("S", stopVals));
+		
+		ArrayList<Rule> rules = Rule.parseFromList("p/f/V_V\nf/h/_\nk/g/#_\nS/b/_#\nh//V_#\n/ə/S_S\nu/o/_/#_",
+				new CategoryContext(cats));
+		
+		ArrayList<String> words = new ArrayList<String>();
+		String[] parts = {"pa", "ku", "ti", "po", "at", "ek", "uh"};
+		for (int i = 0; i < 500; i++) {
+			String word = parts[i % 7] + parts[(i / 7) % 7] + parts[(i / 49) % 7];
+			if (i % 11 == 0) {
+				word += " ‣ " + i;
+			}
+			words.add(word);
+		}
+		
+		Lexicon lexicon = new Lexicon(words);
+		int changed = lexicon.apply(rules);
+		assertTrue(changed > 0);
+		assertEquals(words.size(), lexicon.size());
+		for (int i = 0; i < words.size(); i++) {
+			assertEquals(Rule.parseList(rules, words.get(i)), lexicon.get(i));
+		}
+		
+		// running the rules again works from the updated index
+		lexicon.apply(rules);
+		for (int i = 0; i < words.size(); i++) {
+			assertEquals(Rule.parseList(rules, Rule.parseList(rules, words.get(i))), lexicon.getWords().get(i));
+		}
+	}
+	
+	// multigraphs in categories are matched as whole segments
+	@Test
+	void segmentedRules() {
+		String[] consonantVals = {"t", "th", "k"};
+		String[] vowelVals = {"a", "i", "aa"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("C", consonantVals));
+		cats.add(new Category("V", vowelVals));
+		
+		ArrayList<Rule> rules = Rule.parseFromList("t/d/_\nh/ʔ/_\nC/x/V_V\na/e/_(C)i", new CategoryContext(cats));
+		RuleSet ruleSet = new RuleSet(rules);
+		SegmentedRuleSet segmented = new SegmentedRuleSet(ruleSet);
+		assertEquals(4, segmented.segmentRuleCount());
+		
+		// on characters, the t and h in "th" are changed on their own
+		assertEquals("adʔa", ruleSet.parse("atha"));
+		assertEquals("axa", segmented.parse("atha"));
+		// "aa" is one segment, so "a" doesn't match inside it
+		assertEquals("kaa ‣ gloss", segmented.parse("kaa ‣ gloss"));
+		assertEquals("kaxi", segmented.parse("kaki"));
+		assertEquals("kei", segmented.parse("kai"));
+		
+		// without multigraphs, the output is the same as a normal rule set
+		ArrayList<Rule> plain = Rule.parseFromList("t/d/V_V\nk//_#\na/e/_(C)i/#_", new CategoryContext(new ArrayList<Category>()));
+		String[] words = {"atak", "taki", "kata atai", "aki ‣ t"};
+		for (int i = 0; i < words.length; i++) {
+			assertEquals(Rule.parseList(plain, words[i]), new SegmentedRuleSet(new RuleSet(plain)).parse(words[i]));
+		}
+	}
+	
+	// optional groups are matched directly, with the group left out when possible
+	@Test
+	void optionalGroups() {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		String[] consonantVals = {"p", "t", "k", "m", "n", "s"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		cats.add(new Category("C", consonantVals));
+		
+		try {
+			assertEquals("eki ei epi", new Rule("a/e/_(C)i", cats).parse("aki ai api"));
+			assertEquals("ci ci", new Rule("a(b)/c/_i", cats).parse("abi ai"));
+			assertEquals("x x", new Rule("(a)b/x/_", cats).parse("ab b"));
+			// a target that is only optional groups still needs one of them
+			assertEquals("ikttio", new Rule("(m)(a)/kt/_", cats).parse("imtio"));
+			// optional groups in exceptions are expanded too
+			assertEquals("aki ai eti", new Rule("a/e/_/_(k)i", cats).parse("aki ai ati"));
+			
+			// three groups in the environment, with categories in each
+			Rule rule = new Rule("s/h/V(C)(C)_(C)V", cats);
+			assertEquals("aha ataha atmhsa", rule.parse("asa atasa atmssa"));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// wildcards match any run of characters, as little as they can
+	@Test
+	void wildcards() {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		String[] consonantVals = {"p", "t", "k", "m", "n", "s"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		cats.add(new Category("C", consonantVals));
+
+		try {
+			// every occurrence is changed, not just the first
+			assertEquals("baba bta", new Rule("p/b/_…a", cats).parse("papa pta"));
+			assertEquals("xcyxdy", new Rule("a…b/x…y/_", cats).parse("acbadb"));
+			assertEquals("bca bzza", new Rule("a…b/b…a/_", cats).parse("acb azzb"));
+			// wildcards match as little as they can, and can cross words
+			assertEquals("sad sid", new Rule("s…t/s…d/_", cats).parse("sat sit"));
+			assertEquals("ehi", new Rule("e…V/e…h/_", cats).parse("eai"));
+
+			// a line that never matches shouldn't be searched over and over
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < 20000; i++) {
+				line.append('a');
+			}
+			String input = line.toString() + "b";
+			assertEquals(input, new Rule("a…a…b…a/x/_", cats).parse(input));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// exceptions are checked around each target without being listed
+	@Test
+	void compiledExceptions() {
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("V", vowelVals));
+		// a large category, which would be thousands of strings if every exception were listed
+		String[] consonantVals = new String[300];
+		for (int i = 0; i < consonantVals.length; i++) {
+			consonantVals[i] = Character.toString((char) (0x0100 + i));
+		}
+		consonantVals[0] = "t";
+		consonantVals[1] = "k";
+		cats.add(new Category("C", consonantVals));
+
+		try {
+			// the exception is checked around each target, with the text as it was
+			assertEquals("tnun d mn", new Rule("V/n/_/V_V", cats).parse("tiui d me"));
+			assertEquals("ppkakuak", new Rule("V/ak/_/[ae]_", cats).parse("ppkeui"));
+			// characters in the exception can still be the environment of another target
+			assertEquals("tada", new Rule("t/d/_/#_", cats).parse("tata"));
+
+			Rule rule = new Rule("a/e/_/C_C", cats);
+			assertEquals("tak tek eti", rule.parse("tak tek ati"));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// # matches word edges without spaces being added around words
+	@Test
+	void boundaryAnchors() {
+		String[] voicelessVals = {"p", "t", "k"};
+		String[] voicedVals = {"b", "d", "g"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+
+		try {
+			// something can be added at the edge of a word
+			assertEquals("ka kab", new Rule("/k/#_", cats).parse("a ab"));
+			assertEquals("ak abk", new Rule("/k/_#", cats).parse("a ab"));
+			assertEquals("e ab", new Rule("a/e/#_#", cats).parse("a ab"));
+			// a target at the end of a word only takes up the edge once
+			assertEquals("kax", new Rule("(m)/x/_#", cats).parse("kam"));
+			// whitespace in the word is still a boundary
+			assertEquals("tab bp\tbp", new Rule("p/b/#_", cats).parse("tab pp\tpp"));
+			// rules expanded into mappings see the same boundaries
+			assertEquals("ba dat", new Rule("S/Z/#_", cats).parse("pa tat"));
+
+			RuleSet set = new RuleSet(Arrays.asList(new Rule("/k/#_", cats), new Rule("S/Z/_#", cats)));
+			assertEquals("kad ‣ gloss", set.parse("at ‣ gloss"));
+			assertEquals(set.parse("at ap"), new SegmentedRuleSet(set).parse("at ap"));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// ² matches a repeat of the target, so runs of any length collapse
+	@Test
+	void degeminationRuns() {
+		String[] nasalVals = {"m", "n"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("N", nasalVals));
+
+		try {
+			Rule rule = new Rule("N//_²", cats);
+			assertEquals("ama amna ana", rule.parse("amma amna anna"));
+			// longer runs are collapsed in one pass
+			assertEquals("ama n", rule.parse("ammma nnnn"));
+			assertEquals("ama", new Rule("N//²", cats).parse("amma"));
+			// the environment after the repeat still has to match
+			assertEquals("amm ama", new Rule("N//_²a", cats).parse("amm amma"));
+			assertEquals("nna atna", new Rule("N/t/_²/#_", cats).parse("nna anna"));
+			assertEquals("ssk", new Rule("k/s/_²", cats).parse("kkk"));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// with a replacement, ² changes every segment of a run but the last
+	@Test
+	void repeatReplacement() {
+		String[] nasalVals = {"m", "n"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("N", nasalVals));
+
+		try {
+			Rule rule = new Rule("e/i/_²", cats);
+			assertEquals("ie", rule.parse("ee"));
+			assertEquals("iie", rule.parse("eee"));
+			// the repeat isn't taken up, so matches in a run overlap
+			assertEquals("iiie", rule.parse("eeee"));
+			assertEquals("iiie", new Rule("e/i/²", cats).parse("eeee"));
+			assertEquals("e ie", rule.parse("e ee"));
+			// each value in a category only repeats itself
+			assertEquals("ttmttn", new Rule("N/t/_²", cats).parse("mmmnnn"));
+			RuleSet set = new RuleSet(Arrays.asList(rule));
+			assertEquals("iiie", new SegmentedRuleSet(set).parse("eeee"));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// metathesis reverses the pieces of the target
+	@Test
+	void metathesisSegments() {
+		String[] consonantVals = {"p", "ts", "k"};
+		String[] vowelVals = {"a", "e", "i"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("C", consonantVals));
+		cats.add(new Category("V", vowelVals));
+
+		try {
+			// category values are moved whole
+			Rule rule = new Rule("CV/\\\\\\\\/_#", cats);
+			assertEquals("paap kaats", rule.parse("papa katsa"));
+			// literals are reversed one character at a time
+			assertEquals("tkisa", new Rule("Vkt/\\\\\\\\/_", cats).parse("iktsa"));
+			assertEquals("pakii", new Rule("ikV/\\\\\\\\/_", cats).parse("pikai"));
+			// a skipped optional group isn't written back
+			assertEquals("ap astp", new Rule("C(ts)V/\\\\\\\\/#_", cats).parse("pa ptsa"));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// replacement categories take the value at the same index as the target's
+	@Test
+	void categoryCorrespondence() {
+		String[] voicelessVals = {"p", "t", "k", "q"};
+		String[] voicedVals = {"b", "d", "g"};
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+		cats.add(new Category("V", vowelVals));
+
+		try {
+			// values past the end of the replacement category wrap around
+			assertEquals("ibi ade ugukqobu", new Rule("S/Z/V_V", cats).parse("ipi ate ukukqoqu"));
+			assertEquals("ipe ipa ita", new Rule("ZZ/SV/_", cats).parse("ibd ibb idb"));
+			// extra replacement categories use the index of the last target category
+			assertEquals("ipate ipapa itepa", new Rule("Z/SV/_", cats).parse("ibd ibb idb"));
+			assertEquals("ibi", new Rule("S/Z/V_V/u_", cats).parse("ipi"));
+			assertEquals("upi", new Rule("S/Z/V_V/u_", cats).parse("upi"));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// runs of rules that change single characters are applied as one table
+	@Test
+	void fusedRules() {
+		String[] voicelessVals = {"p", "t", "k"};
+		String[] voicedVals = {"b", "d", "g"};
+		String[] vowelVals = {"a", "e", "i"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+		cats.add(new Category("V", vowelVals));
+
+		ArrayList<Rule> rules = Rule.parseFromList("S/Z/_\nd/ts/_\ne//_\na/e/_#\ni/a/_\nts/s/_\nZ/S/_\ng/ŋg/_",
+				new CategoryContext(cats));
+		RuleSet ruleSet = new RuleSet(rules);
+		FusedRuleSet fused = new FusedRuleSet(ruleSet);
+		// a/e/_# has an environment and ts/s/_ has a longer target, so i/a/_ is left on its own
+		assertEquals(5, fused.getFusedRules().size());
+		assertEquals(5, fused.stepCount());
+		assertTrue(fused.getFusedRules().get(3) == rules.get(6));
+
+		String[] words = {"pita", "tektek", "kapa ‣ gloss", "ekte", "", "dada tata"};
+		for (int i = 0; i < words.length; i++) {
+			assertEquals(ruleSet.parse(words[i]), fused.parse(words[i]));
+		}
+	}
+
+	// in a typical rule file, only the runs of plain substitutions are fused
+	@Test
+	void fusedMixedRules() {
+		String[] voicelessVals = {"p", "t", "k"};
+		String[] voicedVals = {"b", "d", "g"};
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+		cats.add(new Category("V", vowelVals));
+
+		String ruleList = "S/Z/V_V\nx/h/_\nq/k/_\nʃ/s/_\ne/i/_#\nV//_²\nc/k/_\nph/f/_\ny/i/_\nw/v/_\n"
+				+ "k/g/_/s_\nV/\\\\\\\\/Z_S\nZ/S/_#";
+		ArrayList<Rule> rules = Rule.parseFromList(ruleList, new CategoryContext(cats));
+		RuleSet ruleSet = new RuleSet(rules);
+		FusedRuleSet fused = new FusedRuleSet(ruleSet);
+		// x/h/_ to ʃ/s/_ and y/i/_ to w/v/_ are fused, c/k/_ is a run of one, and the
+		// other 8 rules have an environment, an exception, metathesis, or a longer target
+		assertEquals(13, rules.size());
+		assertEquals(5, fused.getFusedRules().size());
+		assertEquals(10, fused.stepCount());
+
+		String[] words = {"xaqeʃ", "phywe", "aciapa", "adpa ‣ gloss", "wooskeqe", "abdet"};
+		for (int i = 0; i < words.length; i++) {
+			assertEquals(ruleSet.parse(words[i]), fused.parse(words[i]));
+		}
+	}
+
+	// rules count what they do only while metrics are on
+	@Test
+	void ruleMetrics() {
+		try {
+			Rule changing = new Rule("a/e/_");
+			Rule unchanging = new Rule("o/u/_");
+			ArrayList<Rule> rules = new ArrayList<Rule>();
+			rules.add(changing);
+			rules.add(unchanging);
+			RuleSet ruleSet = new RuleSet(rules);
+			
+			ruleSet.parse("bab");
+			assertEquals(null, RuleMetrics.snapshot(changing));
+			RuleMetrics.enable();
+			try {
+				assertEquals("beb", ruleSet.parse("bab"));
+				assertEquals("ee ‣ a", ruleSet.parse("aa ‣ a"));
+				// a word the rule can't change counts as a run either way
+				assertEquals("bab", unchanging.parse("bab"));
+			} finally {
+				RuleMetrics.disable();
+			}
+			ruleSet.parse("bab");
+			
+			RuleStats stats = RuleMetrics.snapshot(changing);
+			assertEquals(2, stats.getInvocations());
+			assertEquals(2, stats.getWordsChanged());
+			assertEquals(3, stats.getMatchesApplied());
+			long runs = 0;
+			long[] histogram = stats.getLatencyHistogram();
+			for (int i = 0; i < histogram.length; i++) {
+				runs += histogram[i];
+			}
+			assertEquals(2, runs);
+			assertTrue(stats.getLatencyPercentile(50) <= stats.getLatencyPercentile(100));
+			
+			stats = RuleMetrics.snapshot(unchanging);
+			assertEquals(3, stats.getInvocations());
+			assertEquals(0, stats.getWordsChanged());
+			boolean listed = false;
+			List<RuleStats> snapshot = RuleMetrics.snapshot();
+			for (int i = 0; i < snapshot.size(); i++) {
+				listed |= snapshot.get(i).getRule().equals(unchanging.toString());
+			}
+			assertTrue(listed);
+			
+			RuleMetrics.registerMBean();
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(RuleMetrics.OBJECT_NAME);
+			assertEquals(false, server.getAttribute(name, "Enabled"));
+			assertTrue(((Object[]) server.getAttribute(name, "Rules")).length >= 2);
+			RuleMetrics.unregisterMBean();
+			
+			RuleMetrics.reset();
+			assertEquals(0, RuleMetrics.snapshot(changing).getInvocations());
+			
+			// rules written the same way are told apart, and dropped once they aren't used
+			Rule copy = new Rule("a/e/_");
+			RuleMetrics.enable();
+			try {
+				copy.parse("a");
+			} finally {
+				RuleMetrics.disable();
+			}
+			long copyId = RuleMetrics.snapshot(copy).getId();
+			assertTrue(copyId != RuleMetrics.snapshot(changing).getId());
+			WeakReference<Rule> copyRef = new WeakReference<Rule>(copy);
+			copy = null;
+			for (int i = 0; i < 50 && copyRef.get() != null; i++) {
+				System.gc();
+			}
+			if (copyRef.get() == null) {
+				snapshot = RuleMetrics.snapshot();
+				for (int i = 0; i < snapshot.size(); i++) {
+					assertTrue(snapshot.get(i).getId() != copyId);
+				}
+			}
+		} catch (InvalidRuleSyntaxException | JMException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// fused rules aren't counted, either while the table is built or while it runs
+	@Test
+	void fusedRuleMetrics() {
+		try {
+			Rule first = new Rule("x/h/_");
+			Rule second = new Rule("q/k/_");
+			ArrayList<Rule> rules = new ArrayList<Rule>();
+			rules.add(first);
+			rules.add(second);
+			RuleMetrics.enable();
+			try {
+				FusedRuleSet fused = new FusedRuleSet(new RuleSet(rules));
+				assertEquals(null, RuleMetrics.snapshot(first));
+				assertEquals(null, RuleMetrics.snapshot(second));
+				assertEquals("hak", fused.parse("xaq"));
+				assertEquals(null, RuleMetrics.snapshot(first));
+			} finally {
+				RuleMetrics.disable();
+			}
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// rules report how much they were expanded, and can be rejected before expanding
+	@Test
+	void compileReport() {
+		String[] voicelessVals = {"p", "t", "k"};
+		String[] voicedVals = {"b", "d", "g"};
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+		cats.add(new Category("V", vowelVals));
+		CategoryContext context = new CategoryContext(cats);
+
+		try {
+			RuleReport pattern = new Rule("S/Z/V_V", context).explain();
+			assertEquals(RuleReport.Engine.PATTERN, pattern.getEngine());
+			assertEquals(3, pattern.getTargetCount());
+			assertEquals(25, pattern.getEnvironmentCount());
+			assertEquals(0, pattern.getMappingCount());
+			assertEquals(1, pattern.getOptionalVariants());
+			assertTrue(pattern.getEstimatedBytes() > 0);
+			
+			// ² before the target still has to be expanded
+			RuleReport expanded = new Rule("S/Z/²_V", context).explain();
+			assertTrue(expanded.getEngine() != RuleReport.Engine.PATTERN);
+			assertEquals(15, expanded.getMappingCount());
+			assertEquals(0, expanded.getExceptionCount());
+			RuleReport optional = new Rule("S/Z/²_(V)", context).explain();
+			assertEquals(2, optional.getOptionalVariants());
+			assertTrue(optional.getMappingCount() > expanded.getMappingCount());
+			
+			// patterns never expand, so any budget allows them
+			new Rule("S/Z/V_V", context, new CompileBudget(0));
+			new Rule("S/Z/²_V", context, new CompileBudget(15));
+		} catch (InvalidRuleSyntaxException e) {
+			e.printStackTrace();
+			fail();
+		}
+		
+		try {
+			new Rule("S/Z/²_V", context, new CompileBudget(14));
+			fail();
+		} catch (InvalidRuleSyntaxException e) {
+			// expected, since 3 targets in 5 environments is 15 mappings
+		}
+		
+		// every combination of optional groups is counted, so none of the 2^20 are made
+		try {
+			new Rule("S/Z/²_V(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)(a)", context,
+					new CompileBudget(1000));
+			fail();
+		} catch (InvalidRuleSyntaxException e) {
+			// expected
+		}
+		
+		ArrayList<Rule> rules = Rule.parseFromList("S/Z/V_V\nS/Z/²_V\nV//_#", context, new CompileBudget(10));
+		assertEquals(2, rules.size());
+		List<RuleReport> reports = new RuleSet(rules).explain();
+		assertEquals(2, reports.size());
+		assertEquals("V//_#", reports.get(1).getRule());
+	}
+
+	// compiled rule files load the same rules, and are compiled again when the rules change
+	@Test
+	void compiledRuleFile(@TempDir Path dir) {
+		String[] voicelessVals = {"p", "t", "k"};
+		String[] voicedVals = {"b", "d", "g"};
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+		cats.add(new Category("V", vowelVals));
+		CategoryContext context = new CategoryContext(cats);
+		String ruleList = "S/Z/V_V\nV/[əɨ]/_²\nk/x/_(V)#/a\nZ/S/²_\no/u/_/ko";
+		String[] words = {"apa", "aake", "tak", "kiik", "bbo", "kobo", "ddaak‣gloss"};
+		Path file = dir.resolve("rules.oscc");
+
+		try {
+			RuleSet expected = RuleSet.parseFromList(ruleList, context);
+			RuleSet written = CompiledRuleFile.load(file, ruleList, context);
+			assertTrue(Files.exists(file));
+			RuleSet loaded = CompiledRuleFile.read(file, ruleList, context);
+			RuleSet loadedAlone = CompiledRuleFile.read(file);
+			assertEquals(expected.getRules().size(), loaded.getRules().size());
+			for (int i = 0; i < words.length; i++) {
+				assertEquals(expected.parse(words[i]), written.parse(words[i]));
+				assertEquals(expected.parse(words[i]), loaded.parse(words[i]));
+				assertEquals(expected.parse(words[i]), loadedAlone.parse(words[i]));
+			}
+			
+			// changing the rules or the categories makes the file stale
+			String changed = ruleList + "\nx/h/_";
+			assertEquals(null, CompiledRuleFile.read(file, changed, context));
+			assertEquals(null, CompiledRuleFile.read(file, ruleList, new CategoryContext(new ArrayList<Category>())));
+			assertEquals("tah", CompiledRuleFile.load(file, changed, context).parse("tak"));
+			assertEquals("tah", CompiledRuleFile.read(file, changed, context).parse("tak"));
+			
+			// a damaged file is compiled again too
+			byte[] bytes = Files.readAllBytes(file);
+			bytes[bytes.length - 1] ^= 1;
+			Files.write(file, bytes);
+			assertEquals(null, CompiledRuleFile.read(file, changed, context));
+			try {
+				CompiledRuleFile.read(file);
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+			assertEquals("tah", CompiledRuleFile.load(file, changed, context).parse("tak"));
+			assertTrue(CompiledRuleFile.read(file, changed, context) != null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	// rule lists compiled across a pool keep their order, and skip the same bad lines
+	@Test
+	void parallelRuleCompile() {
+		String[] voicelessVals = {"p", "t", "k"};
+		String[] voicedVals = {"b", "d", "g"};
+		String[] vowelVals = {"a", "e", "i", "o", "u"};
+		ArrayList<Category> cats = new ArrayList<Category>();
+		cats.add(new Category("S", voicelessVals));
+		cats.add(new Category("Z", voicedVals));
+		cats.add(new Category("V", vowelVals));
+		CategoryContext context = new CategoryContext(cats);
+		String[] lines = {"S/Z/V_V", "a/e", "V/[əɨ]/_²", "k/x/_(V)#/a", "bad rule", "Z/S/²_", "o/u/_/ko"};
+		
+		StringBuilder ruleList = new StringBuilder();
+		ArrayList<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 40; i++) {
+			String line = lines[i % lines.length];
+			ruleList.append(line).append('\n');
+			try {
+				expected.add(new Rule(line, context).toString());
+			} catch (InvalidRuleSyntaxException e) {
+				// skipped by parseFromList too
+			}
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ArrayList<Rule> rules = Rule.parseFromList(ruleList.toString(), context, null, pool);
+			assertEquals(expected.size(), rules.size());
+			for (int i = 0; i < rules.size(); i++) {
+				assertEquals(expected.get(i), rules.get(i).toString());
+			}
+			assertEquals(new RuleSet(Rule.parseFromList(ruleList.toString(), context)).parse("kobeta"),
+					new RuleSet(rules).parse("kobeta"));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 	// load .sc file
 	void loadSCFile() {
 		